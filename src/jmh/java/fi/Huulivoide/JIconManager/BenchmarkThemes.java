@@ -0,0 +1,195 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+
+/**
+ * Synthetic icon themes for the benchmarks, shaped like the big desktop themes:
+ * every context in a range of fixed sizes plus a scalable directory.
+ */
+class BenchmarkThemes
+{
+    static final int[] SIZES = { 8, 16, 22, 24, 32, 48, 64, 96, 128, 256 };
+    static final String[] CONTEXTS = { "Actions", "Applications", "Categories", "Devices",
+                                       "Emblems", "MimeTypes", "Places", "Status" };
+
+    /**
+     * Write the index.theme of a theme with a directory for every context and size.
+     *
+     * @param themeRoot root directory of the theme
+     * @param scales number of scales of the fixed size directories, 1 for unscaled only
+     * @return the index.theme file
+     */
+    static Path writeThemeFile(Path themeRoot, int scales) throws IOException
+    {
+        ArrayList<String> directoryNames = new ArrayList<>();
+        ArrayList<String> sections = new ArrayList<>();
+
+        for (String context : CONTEXTS)
+        {
+            for (int scale = 1; scale <= scales; scale++)
+            {
+                for (int size : SIZES)
+                {
+                    String directoryName = getDirectoryName(size, scale, context);
+                    directoryNames.add(directoryName);
+
+                    sections.add("");
+                    sections.add("[" + directoryName + "]");
+                    sections.add("Context=" + context);
+                    sections.add("Size=" + size);
+                    if (scale > 1)
+                        sections.add("Scale=" + scale);
+                    sections.add("Type=Threshold");
+                }
+            }
+
+            String directoryName = "scalable/" + context.toLowerCase();
+            directoryNames.add(directoryName);
+
+            sections.add("");
+            sections.add("[" + directoryName + "]");
+            sections.add("Context=" + context);
+            sections.add("Size=16");
+            sections.add("MinSize=8");
+            sections.add("MaxSize=512");
+            sections.add("Type=Scalable");
+        }
+
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("[Icon Theme]");
+        lines.add("Name=" + themeRoot.getFileName());
+        lines.add("Comment=Synthetic theme for benchmarks");
+        lines.add("Example=folder");
+        lines.add("Directories=" + join(directoryNames));
+        lines.addAll(sections);
+
+        Files.createDirectories(themeRoot);
+        return Files.write(themeRoot.resolve("index.theme"), lines, UTF_8);
+    }
+
+    /**
+     * Write a theme with the same number of empty icon files in each fixed size directory.
+     * Only the file names matter to the index.
+     *
+     * @param themeRoot root directory of the theme
+     * @param iconsPerDirectory number of icons in each directory
+     * @return the index.theme file
+     */
+    static Path writeTheme(Path themeRoot, int iconsPerDirectory) throws IOException
+    {
+        Path themeFile = writeThemeFile(themeRoot, 1);
+
+        for (String context : CONTEXTS)
+        {
+            for (int size : SIZES)
+            {
+                Path directory = themeRoot.resolve(getDirectoryName(size, 1, context));
+                Files.createDirectories(directory);
+
+                for (int i = 0; i < iconsPerDirectory; i++)
+                    Files.createFile(directory.resolve(getIconName(context, i) + ".png"));
+            }
+
+            Files.createDirectories(themeRoot.resolve("scalable/" + context.toLowerCase()));
+        }
+
+        return themeFile;
+    }
+
+    /**
+     * @param size nominal size of the directory
+     * @param scale scale of the directory
+     * @param context context of the directory
+     * @return path of the directory relative to the theme root
+     */
+    static String getDirectoryName(int size, int scale, String context)
+    {
+        return size + "x" + size + (scale > 1 ? "@" + scale : "") + "/" + context.toLowerCase();
+    }
+
+    /**
+     * @param context context of the icon
+     * @param index index of the icon in the context
+     * @return name of the icon
+     */
+    static String getIconName(String context, int index)
+    {
+        return context.toLowerCase() + "-icon-" + index;
+    }
+
+    /**
+     * Drop the operating system's page cache, so that the next scan reads from the disk.
+     * Only works on Linux, as root.
+     */
+    static void dropPageCache() throws IOException, InterruptedException
+    {
+        new ProcessBuilder("sync").inheritIO().start().waitFor();
+        Files.write(Paths.get("/proc/sys/vm/drop_caches"), "3".getBytes(UTF_8));
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     *
+     * @param directory the directory
+     */
+    static void delete(Path directory) throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException
+            {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String join(ArrayList<String> values)
+    {
+        StringBuilder joined = new StringBuilder();
+
+        for (String value : values)
+        {
+            if (joined.length() > 0)
+                joined.append(',');
+            joined.append(value);
+        }
+
+        return joined.toString();
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getting an icon that has been decoded before, straight from a theme and through
+ * the ResolutionTable of a JIconManager, in the size of its source and resized. The lazily
+ * loaded theme is only ever asked for icons of one context, so the directories of its
+ * other context are never loaded. Run with -prof gc, a hit should allocate nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class CachedIconBenchmark
+{
+    @Setup(Level.Trial)
+    public void loadThemes() throws IOException, MalformedIconThemeFileException
+    {
+        themeDirectory = Files.createTempDirectory("jiconmanager-benchmark");
+        Path themeRoot = themeDirectory.resolve("Cached");
+
+        Files.createDirectories(themeRoot);
+        Files.write(themeRoot.resolve("index.theme"),
+                    Arrays.asList("[Icon Theme]",
+                                  "Name=Cached",
+                                  "Directories=apps,mimetypes",
+                                  "",
+                                  "[apps]",
+                                  "Size=32",
+                                  "Context=Applications",
+                                  "",
+                                  "[mimetypes]",
+                                  "Size=32",
+                                  "Context=MimeTypes"),
+                    Charset.forName("UTF-8"));
+
+        for (String directory : new String[] { "apps", "mimetypes" })
+        {
+            Files.createDirectories(themeRoot.resolve(directory));
+            ImageIO.write(new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB), "png",
+                          themeRoot.resolve(directory + "/icon.png").toFile());
+        }
+
+        theme = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+        table = new ResolutionTable(null, theme, false);
+        lazyTable = new ResolutionTable(null, new Theme(themeRoot.resolve("index.theme"), false, ScanMode.LAZY), false);
+
+        // Decode every icon once, the benchmarks only measure hits
+        theme.getIcon("icon", 32);
+        theme.getIcon("icon", 24);
+        table.getIcon("icon", 32);
+        table.getIcon("icon", 24);
+        lazyTable.getIcon("icon", 24, "Applications");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTheme() throws IOException
+    {
+        BenchmarkThemes.delete(themeDirectory);
+    }
+
+    @Benchmark
+    public ImageIcon theme()
+    {
+        return theme.getIcon("icon", 32);
+    }
+
+    @Benchmark
+    public ImageIcon themeResized()
+    {
+        return theme.getIcon("icon", 24);
+    }
+
+    @Benchmark
+    public ImageIcon resolutionTable()
+    {
+        return table.getIcon("icon", 32);
+    }
+
+    @Benchmark
+    public ImageIcon resolutionTableResized()
+    {
+        return table.getIcon("icon", 24);
+    }
+
+    @Benchmark
+    public ImageIcon lazyContextResized()
+    {
+        return lazyTable.getIcon("icon", 24, "Applications");
+    }
+
+    private Path themeDirectory;
+    private Theme theme;
+    private ResolutionTable table;
+    private ResolutionTable lazyTable;
+}
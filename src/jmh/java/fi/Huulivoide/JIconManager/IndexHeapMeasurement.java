@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import javax.swing.ImageIcon;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Retained heap of the icon index of a large theme, against a model of the index Theme
+ * used to build: a HashMap from every icon name to a ThemeIcon holding a HashMap of boxed
+ * sizes to full Paths, and another HashMap for the decoded icons.
+ *
+ * Run with
+ * mvn -P benchmark clean test-compile exec:exec -Dbenchmark.main=fi.Huulivoide.JIconManager.IndexHeapMeasurement
+ * optionally passing the number of icons in each directory in -Djmh.args, 300 by default.
+ */
+public class IndexHeapMeasurement
+{
+    public static void main(String[] args) throws Exception
+    {
+        int iconsPerDirectory = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        Path themeDirectory = Files.createTempDirectory("jiconmanager-benchmark");
+
+        try
+        {
+            // Load the classes and static tables first, so that only the index is measured
+            Path warmupFile = BenchmarkThemes.writeTheme(themeDirectory.resolve("Small"), 1);
+            new Theme(warmupFile, false, ScanMode.EAGER);
+            loadOldIndex(warmupFile);
+
+            Path themeFile = BenchmarkThemes.writeTheme(themeDirectory.resolve("Large"), iconsPerDirectory);
+
+            long before = getUsedHeap();
+            Theme theme = new Theme(themeFile, false, ScanMode.EAGER);
+            long themeBytes = getUsedHeap() - before;
+
+            before = getUsedHeap();
+            HashMap<String, OldThemeIcon> oldIndex = loadOldIndex(themeFile);
+            long oldBytes = getUsedHeap() - before;
+
+            System.out.printf("Icons: %d names in %d files%n", oldIndex.size(),
+                              iconsPerDirectory * BenchmarkThemes.SIZES.length * BenchmarkThemes.CONTEXTS.length);
+            System.out.printf("Theme:     %,d bytes%n", themeBytes);
+            System.out.printf("Old index: %,d bytes%n", oldBytes);
+
+            // Both must stay reachable until they have been measured
+            System.out.println(theme.getIcon("none", 16) == null && oldIndex.get("none") == null);
+        }
+        finally
+        {
+            BenchmarkThemes.delete(themeDirectory);
+        }
+    }
+
+    /**
+     * The index as Theme built it before it was made compact.
+     */
+    private static class OldThemeIcon
+    {
+        public OldThemeIcon()
+        {
+            sizes = new HashMap<>();
+            cachedIcons = new HashMap<>();
+        }
+
+        public HashMap<Integer, Path> sizes;
+        public HashMap<Integer, ImageIcon> cachedIcons;
+    }
+
+    private static HashMap<String, OldThemeIcon> loadOldIndex(Path themeFile) throws Exception
+    {
+        IndexThemeFile themeData = IndexThemeFile.parse(themeFile);
+        HashMap<String, OldThemeIcon> icons = new HashMap<>();
+
+        for (int i = 0; i < themeData.directoryCount; i++)
+        {
+            Path directory = themeFile.getParent().resolve(themeData.directoryNames[i]);
+            Integer size = themeData.sizes[i];
+
+            try (DirectoryStream<Path> iconFiles = Files.newDirectoryStream(directory, "*.png"))
+            {
+                for (Path iconFile : iconFiles)
+                {
+                    String iconName = iconFile.getFileName().toString().split("\\.")[0];
+                    OldThemeIcon icon = icons.get(iconName);
+
+                    if (icon == null)
+                    {
+                        icon = new OldThemeIcon();
+                        icons.put(iconName, icon);
+                    }
+
+                    icon.sizes.put(size, iconFile);
+                }
+            }
+            catch (NoSuchFileException e)
+            {
+                // Scalable directories are left empty
+            }
+        }
+
+        return icons;
+    }
+
+    private static long getUsedHeap() throws InterruptedException
+    {
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
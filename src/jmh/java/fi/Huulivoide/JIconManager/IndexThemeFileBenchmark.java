@@ -0,0 +1,112 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.ini4j.Ini;
+import org.ini4j.Profile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the directory table of an index.theme with IndexThemeFile, against building
+ * an ini4j Ini of the file and reading the same keys from it, as Theme used to.
+ *
+ * The files have 88 directory sections per scale, 264 with three scales, which is
+ * in the range of the big desktop themes. Run with -prof gc to see the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class IndexThemeFileBenchmark
+{
+    @Param({ "1", "3" })
+    public int scales;
+
+    @Setup(Level.Trial)
+    public void writeThemeFile() throws IOException
+    {
+        themeDirectory = Files.createTempDirectory("jiconmanager-benchmark");
+        themeFile = BenchmarkThemes.writeThemeFile(themeDirectory.resolve("Large"), scales);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteThemeFile() throws IOException
+    {
+        BenchmarkThemes.delete(themeDirectory);
+    }
+
+    @Benchmark
+    public IndexThemeFile indexThemeFile() throws IOException, MalformedIconThemeFileException
+    {
+        return IndexThemeFile.parse(themeFile);
+    }
+
+    @Benchmark
+    public void ini4j(Blackhole blackhole) throws IOException
+    {
+        Ini themeData;
+        try (Reader reader = Files.newBufferedReader(themeFile, UTF_8))
+        {
+            themeData = new Ini(reader);
+        }
+
+        Profile.Section infoSection = themeData.get("Icon Theme");
+        blackhole.consume(infoSection.get("Name"));
+        blackhole.consume(infoSection.get("Inherits"));
+
+        for (String folder : infoSection.get("Directories").split(","))
+        {
+            Profile.Section section = themeData.get(folder);
+
+            blackhole.consume(section.get("Size"));
+            blackhole.consume(section.get("Type"));
+            blackhole.consume(section.get("MinSize"));
+            blackhole.consume(section.get("MaxSize"));
+            blackhole.consume(section.get("Threshold"));
+            blackhole.consume(section.get("Scale"));
+            blackhole.consume(section.get("Context"));
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Path themeDirectory;
+    private Path themeFile;
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing one theme directory with Theme's scanner, against the loop Theme used before:
+ * a glob filtered DirectoryStream, a separate symbolic link check for every file, the
+ * icon name cut with String.split and a full Path kept for every icon.
+ *
+ * One file in ten is a symbolic link to another icon of the directory. Run with
+ * -prof gc and divide the allocations by the number of files to get them per entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ScanBenchmark
+{
+    @Param({ "300" })
+    public int files;
+
+    @Setup(Level.Trial)
+    public void writeDirectory() throws IOException, MalformedIconThemeFileException
+    {
+        themeDirectory = Files.createTempDirectory("jiconmanager-benchmark");
+        Path themeRoot = themeDirectory.resolve("Scanned");
+        BenchmarkThemes.writeThemeFile(themeRoot, 1);
+
+        directory = themeRoot.resolve(BenchmarkThemes.getDirectoryName(48, 1, "Applications"));
+        Files.createDirectories(directory);
+
+        for (int i = 0; i < files; i++)
+        {
+            Path file = directory.resolve(BenchmarkThemes.getIconName("Applications", i) + ".png");
+
+            if (i % 10 == 9)
+                Files.createSymbolicLink(file, Paths.get(BenchmarkThemes.getIconName("Applications", i - 1) + ".png"));
+            else
+                Files.createFile(file);
+        }
+
+        // Lazy loading leaves the directories alone until they are asked for
+        theme = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.LAZY);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() throws IOException
+    {
+        BenchmarkThemes.delete(themeDirectory);
+    }
+
+    @Benchmark
+    public DirectoryListing scanDirectory()
+    {
+        return theme.scanDirectory(directory);
+    }
+
+    @Benchmark
+    public HashMap<String, Path> directoryStream() throws IOException
+    {
+        HashMap<String, Path> icons = new HashMap<>();
+        List<String> linkTargets = new ArrayList<>();
+
+        try (DirectoryStream<Path> iconFiles = Files.newDirectoryStream(directory, "*.png"))
+        {
+            for (Path iconFile : iconFiles)
+            {
+                if (Files.isSymbolicLink(iconFile))
+                    linkTargets.add(Files.readSymbolicLink(iconFile).getFileName().toString().split("\\.")[0]);
+
+                icons.put(iconFile.getFileName().toString().split("\\.")[0], directory.resolve(iconFile.getFileName()));
+            }
+        }
+
+        return icons;
+    }
+
+    private Path themeDirectory;
+    private Path directory;
+    private Theme theme;
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load a large theme that has neither a GTK icon cache nor a persistent index,
+ * scanning its directories one by one or in parallel. Each iteration is a single load,
+ * like the start of an application.
+ *
+ * Run with -p coldCache=true, as root on Linux, to read the directories from the disk
+ * instead of the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(3)
+public class ThemeLoadBenchmark
+{
+    @Param({ "EAGER", "PARALLEL" })
+    public ScanMode scanMode;
+
+    @Param({ "300" })
+    public int iconsPerDirectory;
+
+    @Param({ "false" })
+    public boolean coldCache;
+
+    @Setup(Level.Trial)
+    public void writeTheme() throws IOException
+    {
+        themeDirectory = Files.createTempDirectory("jiconmanager-benchmark");
+        themeRoot = themeDirectory.resolve("Large");
+        BenchmarkThemes.writeTheme(themeRoot, iconsPerDirectory);
+    }
+
+    @Setup(Level.Iteration)
+    public void forgetIndex() throws IOException, InterruptedException
+    {
+        // Every load scans the directories, instead of reading them from the index of the last one
+        Files.deleteIfExists(ThemeIndexCache.getIndexFile(themeRoot));
+
+        if (coldCache)
+            BenchmarkThemes.dropPageCache();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTheme() throws IOException
+    {
+        BenchmarkThemes.delete(themeDirectory);
+    }
+
+    @Benchmark
+    public Theme load() throws MalformedIconThemeFileException
+    {
+        return new Theme(themeRoot.resolve("index.theme"), false, scanMode);
+    }
+
+    private Path themeDirectory;
+    private Path themeRoot;
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Find out the user's default icon theme without running any external programs.
+ *
+ * The theme name is looked up from, in order:
+ * <ol>
+ *     <li>kdeglobals, if running under KDE</li>
+ *     <li>Gnome's dconf user database</li>
+ *     <li>GTK 4 and GTK 3 settings.ini, first the user's then the system's</li>
+ *     <li>kdeglobals</li>
+ * </ol>
+ *
+ * The result is cached until {@link #reset()} is called.
+ */
+class DefaultThemeResolver
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * Get the name of the user's default icon theme.
+     *
+     * @return theme name or null if it cannot be determined
+     */
+    public static String getDefaultTheme()
+    {
+        String theme = defaultTheme;
+
+        if (theme == null)
+        {
+            theme = resolveDefaultTheme();
+
+            // Remember failures too, there is no point in looking again
+            defaultTheme = theme == null ? NOT_FOUND : theme;
+        }
+
+        return theme == NOT_FOUND ? null : theme;
+    }
+
+    /**
+     * Forget the cached default theme, so that the next call looks it up again.
+     */
+    public static void reset()
+    {
+        defaultTheme = null;
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //  region Protected   //
+    /////////////////////////
+
+    /**
+     * Read a single value from an ini-style configuration file.
+     *
+     * @param file configuration file
+     * @param section name of the section, without brackets
+     * @param key name of the key
+     * @return value or null if the file, section or key does not exist, or the value is empty
+     */
+    static String readIniValue(Path file, String section, String key)
+    {
+        if (!Files.isRegularFile(file))
+            return null;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF_8))
+        {
+            boolean inSection = false;
+            String line;
+
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+
+                if (line.startsWith("["))
+                {
+                    inSection = line.equals("[" + section + "]");
+                }
+                else if (inSection)
+                {
+                    int separator = line.indexOf('=');
+
+                    if (separator > 0 && line.substring(0, separator).trim().equals(key))
+                    {
+                        String value = line.substring(separator + 1).trim();
+
+                        // GTK allows quoting the value
+                        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+                            value = value.substring(1, value.length() - 1);
+
+                        return value.length() > 0 ? value : null;
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.info("Could not read '{}': {}", file.toString(), e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Read user's default icon theme from Gnome 3's dconf database.
+     *
+     * The database is a GVDB file, a hash table whose items point to their parent item,
+     * so that the full key of an item is the concatenation of the keys of its ancestors.
+     * The database is small, so we simply walk all of its items instead of hashing the key.
+     *
+     * <pre>
+     * Header:    8 byte signature, u32 version, u32 options, pointer root
+     * Pointer:   u32 start, u32 end
+     * HashTable: u32 bloom word count, u32 bucket count, u32 bloom[], u32 bucket[], Item[]
+     * Item:      u32 hash, u32 parent, u32 key start, u16 key size, u8 type, u8 unused, pointer value
+     * </pre>
+     *
+     * @param database path to the dconf user database
+     * @return icon-theme name or null if not found
+     */
+    static String getDconfTheme(Path database)
+    {
+        if (!Files.isRegularFile(database))
+            return null;
+
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(database));
+            byte[] signature = new byte[8];
+            buffer.get(signature);
+
+            String signatureText = new String(signature, UTF_8);
+            if (signatureText.equals("GVariant"))
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            else if (signatureText.equals("raVGtnai"))
+                buffer.order(ByteOrder.BIG_ENDIAN);
+            else
+                return null;
+
+            int tableStart = buffer.getInt(16);
+            int tableEnd = buffer.getInt(20);
+
+            int bloomWords = buffer.getInt(tableStart) & 0x07FFFFFF;
+            int buckets = buffer.getInt(tableStart + 4);
+            long bucketsEnd = tableStart + 8 + 4L * bloomWords + 4L * (buckets & 0xFFFFFFFFL);
+
+            // The items must lie between the buckets and the end of the table, inside the file
+            if (tableEnd > buffer.limit() || tableEnd < bucketsEnd)
+            {
+                log.info("Could not parse dconf database '{}': inconsistent root table.", database.toString());
+                return null;
+            }
+
+            int itemsStart = (int) bucketsEnd;
+            int itemCount = (tableEnd - itemsStart) / ITEM_SIZE;
+
+            String[] keys = new String[itemCount];
+
+            for (int i = 0; i < itemCount; i++)
+            {
+                int item = itemsStart + i * ITEM_SIZE;
+
+                if (buffer.get(item + 14) != 'v' || !getKey(buffer, itemsStart, itemCount, i, keys).equals(DCONF_KEY))
+                    continue;
+
+                return readStringVariant(buffer, buffer.getInt(item + 16), buffer.getInt(item + 20));
+            }
+        }
+        catch (IOException e)
+        {
+            log.info("Could not read dconf database '{}': {}", database.toString(), e.getMessage());
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e)
+        {
+            log.info("Could not parse dconf database '{}': {}", database.toString(), e.toString());
+        }
+
+        return null;
+    }
+
+    /////////////////////////
+    // endregion Protected //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private static final Logger log = LoggerFactory.getLogger(DefaultThemeResolver.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String NOT_FOUND = new String("");
+    private static final String DCONF_KEY = "/org/gnome/desktop/interface/icon-theme";
+    private static final int ITEM_SIZE = 24;
+
+    private static volatile String defaultTheme;
+
+    private static String resolveDefaultTheme()
+    {
+        Path configHome = getConfigHome();
+        String theme = null;
+
+        String desktop = System.getenv("XDG_CURRENT_DESKTOP");
+        boolean isKde = desktop != null && desktop.toUpperCase().contains("KDE");
+
+        if (configHome != null)
+        {
+            if (isKde)
+                theme = readIniValue(configHome.resolve("kdeglobals"), "Icons", "Theme");
+
+            if (theme == null)
+                theme = getDconfTheme(configHome.resolve("dconf").resolve("user"));
+        }
+
+        if (theme == null)
+        {
+            for (Path settingsFile : getGtkSettingsFiles(configHome))
+            {
+                theme = readIniValue(settingsFile, "Settings", "gtk-icon-theme-name");
+
+                if (theme != null)
+                    break;
+            }
+        }
+
+        if (theme == null && configHome != null && !isKde)
+            theme = readIniValue(configHome.resolve("kdeglobals"), "Icons", "Theme");
+
+        log.debug("Detected default icon theme '{}'.", theme);
+
+        return theme;
+    }
+
+    private static Path getConfigHome()
+    {
+        String configHome = System.getenv("XDG_CONFIG_HOME");
+        if (configHome != null && configHome.length() > 0 && Paths.get(configHome).isAbsolute())
+            return Paths.get(configHome);
+
+        String home = System.getenv("HOME");
+        if (home != null && home.length() > 0)
+            return Paths.get(home, ".config");
+
+        return null;
+    }
+
+    private static List<Path> getGtkSettingsFiles(Path configHome)
+    {
+        ArrayList<Path> files = new ArrayList<>();
+
+        if (configHome != null)
+        {
+            files.add(configHome.resolve("gtk-4.0").resolve("settings.ini"));
+            files.add(configHome.resolve("gtk-3.0").resolve("settings.ini"));
+        }
+
+        String configDirs = System.getenv("XDG_CONFIG_DIRS");
+        if (configDirs == null || configDirs.length() == 0)
+            configDirs = "/etc/xdg";
+
+        for (String configDir : configDirs.split(":"))
+        {
+            if (configDir.length() > 0)
+            {
+                files.add(Paths.get(configDir, "gtk-4.0", "settings.ini"));
+                files.add(Paths.get(configDir, "gtk-3.0", "settings.ini"));
+            }
+        }
+
+        files.add(Paths.get("/etc/gtk-4.0/settings.ini"));
+        files.add(Paths.get("/etc/gtk-3.0/settings.ini"));
+
+        return files;
+    }
+
+    /**
+     * Construct the full key of a GVDB hash table item.
+     */
+    private static String getKey(ByteBuffer buffer, int itemsStart, int itemCount, int itemIndex, String[] keys)
+    {
+        if (keys[itemIndex] != null)
+            return keys[itemIndex];
+
+        int item = itemsStart + itemIndex * ITEM_SIZE;
+        int parent = buffer.getInt(item + 4);
+        int keyStart = buffer.getInt(item + 8);
+        int keySize = buffer.getShort(item + 12) & 0xFFFF;
+
+        byte[] keyBytes = new byte[keySize];
+        for (int i = 0; i < keySize; i++)
+            keyBytes[i] = buffer.get(keyStart + i);
+
+        String key = new String(keyBytes, UTF_8);
+
+        // Guards against corrupted files where an item is its own ancestor
+        keys[itemIndex] = key;
+
+        // 0xFFFFFFFF marks items without a parent
+        if (parent >= 0 && parent < itemCount)
+            key = getKey(buffer, itemsStart, itemCount, parent, keys) + key;
+
+        keys[itemIndex] = key;
+
+        return key;
+    }
+
+    /**
+     * Read a string from a serialized GVariant of type 'v' holding a value of type 's'.
+     *
+     * The child value is followed by a NUL byte and the child's type string.
+     */
+    private static String readStringVariant(ByteBuffer buffer, int start, int end)
+    {
+        int separator = end - 1;
+        while (separator > start && buffer.get(separator) != 0)
+            separator--;
+
+        if (separator != end - 2 || buffer.get(end - 1) != 's' || separator - 1 < start)
+            return null;
+
+        // The string itself ends with a NUL too
+        byte[] bytes = new byte[separator - 1 - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(start + i);
+
+        String value = new String(bytes, UTF_8);
+
+        return value.length() > 0 ? value : null;
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PNG icons found in one theme directory.
+ *
+ * A listing can come from scanning the directory, from GTK's icon-theme.cache
+ * or from our own persistent theme index. Icons are stored by their name, without
+ * the .png extension. Symbolic links are listed like any other file, under their
+ * own name. Optionally the real size of each image, read from its PNG header,
+ * is stored too.
+ *
+ * <br><br>
+ *
+ * The same names appear in every size directory of a theme and in most themes,
+ * so the names are interned once for all listings and the icon indexes built from them.
+ */
+class DirectoryListing
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * @param modified last modification time of the directory in milliseconds,
+     *                 0 if unknown
+     */
+    public DirectoryListing(long modified)
+    {
+        this(modified, false);
+    }
+
+    /**
+     * @param modified last modification time of the directory in milliseconds,
+     *                 0 if unknown
+     * @param probed true if the real image sizes of the icons were read
+     */
+    public DirectoryListing(long modified, boolean probed)
+    {
+        this.modified = modified;
+        this.probed = probed;
+        iconNames = new String[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add an icon to the listing.
+     *
+     * @param iconName name of the icon
+     */
+    public void add(String iconName)
+    {
+        add(iconName, 0);
+    }
+
+    /**
+     * Add an icon to the listing.
+     *
+     * @param iconName name of the icon
+     * @param imageSize real size of the image in pixels or 0 if unknown
+     */
+    public void add(String iconName, int imageSize)
+    {
+        if (size == iconNames.length)
+        {
+            iconNames = Arrays.copyOf(iconNames, size * 2);
+
+            if (imageSizes != null)
+                imageSizes = Arrays.copyOf(imageSizes, size * 2);
+        }
+
+        // Image sizes are only known when probing, so they are only stored when needed
+        if (imageSize != 0 && imageSizes == null)
+            imageSizes = new int[iconNames.length];
+
+        iconNames[size] = intern(iconName);
+        if (imageSizes != null)
+            imageSizes[size] = imageSize;
+
+        size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public String getIconName(int index)
+    {
+        return iconNames[index];
+    }
+
+    /**
+     * @param index index of the icon in the listing
+     * @return real size of the image in pixels or 0 if unknown
+     */
+    public int getImageSize(int index)
+    {
+        return imageSizes == null ? 0 : imageSizes[index];
+    }
+
+    /**
+     * Strip the .png extension from a file name.
+     *
+     * @param fileName name of a file ending in .png
+     * @return icon name
+     */
+    public static String getIconName(String fileName)
+    {
+        if (fileName.endsWith(PNG_EXTENSION))
+            return fileName.substring(0, fileName.length() - PNG_EXTENSION.length());
+
+        return fileName;
+    }
+
+    public static final String PNG_EXTENSION = ".png";
+
+    public final long modified;
+    public final boolean probed;
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Icon names of every theme loaded so far, shared by all listings
+    private static final ConcurrentHashMap<String, String> NAMES = new ConcurrentHashMap<>();
+
+    private String[] iconNames;
+    private int[] imageSizes;
+    private int size;
+
+    private static String intern(String name)
+    {
+        String interned = NAMES.putIfAbsent(name, name);
+
+        return interned == null ? name : interned;
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
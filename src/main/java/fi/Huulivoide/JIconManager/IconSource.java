@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import java.nio.file.Path;
+
+/**
+ * The file an icon would be loaded from, for handing the icon to something
+ * that reads the file itself, like a notification daemon or a web client.
+ *
+ * The source is chosen exactly as {@link JIconManager#getIcon(String, int)} chooses it,
+ * but only from the icon index, without reading or decoding the image.
+ *
+ * @see JIconManager#resolve(String, int)
+ */
+public class IconSource
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * @return path to the PNG file of the icon
+     */
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * @return name of the theme that provides the icon
+     */
+    public String getThemeName()
+    {
+        return themeName;
+    }
+
+    /**
+     * @return nominal size of the directory the file is in, as given by its Size-key
+     */
+    public int getDirectorySize()
+    {
+        return directorySize;
+    }
+
+    /**
+     * @return scale of the directory the file is in, 1 unless the directory is meant for HiDPI screens
+     */
+    public int getScale()
+    {
+        return scale;
+    }
+
+    /**
+     * Tells whether the image has to be resized to get an icon of the requested size.
+     * The real size of the image is used if the theme was scanned with
+     * {@link ScanProfile#probeImageSizes()}, otherwise the size of its directory.
+     *
+     * @return true if the image is not of the requested size
+     */
+    public boolean needsScaling()
+    {
+        return needsScaling;
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //  region Protected   //
+    /////////////////////////
+
+    IconSource(Path path, String themeName, int directorySize, int scale, boolean needsScaling)
+    {
+        this.path = path;
+        this.themeName = themeName;
+        this.directorySize = directorySize;
+        this.scale = scale;
+        this.needsScaling = needsScaling;
+    }
+
+    /////////////////////////
+    // endregion Protected //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private final Path path;
+    private final String themeName;
+    private final int directorySize;
+    private final int scale;
+    private final boolean needsScaling;
+
+    /////////////////////////
+    //  endregion Private  //
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Read-only view of a GTK icon-theme.cache file.
+ *
+ * The cache is written by gtk-update-icon-cache and contains a hash table that maps
+ * every icon name of the theme to the directories it can be found in. Reading it
+ * lets a Theme build its index without listing a single theme directory.
+ *
+ * All integers in the file are big-endian. The layout is:
+ * <pre>
+ * Header:    u16 major, u16 minor, u32 hash offset, u32 directory list offset
+ * DirList:   u32 count, u32 string offset[count]
+ * Hash:      u32 bucket count, u32 icon offset[bucket count]
+ * Icon:      u32 chain offset, u32 name offset, u32 image list offset
+ * ImageList: u32 count, { u16 directory index, u16 flags, u32 image data offset }[count]
+ * </pre>
+ */
+class IconThemeCache
+{
+    //    region Public    //
+    /////////////////////////
+
+    public static final String CACHE_FILE_NAME = "icon-theme.cache";
+
+    /**
+     * Open the icon-theme.cache of the theme rooted at the given path.
+     *
+     * The cache is only used if it is at least as new as the theme root and every
+     * one of the given directories, just like GTK does.
+     *
+     * @param themeRoot root directory of the theme
+     * @param directories directories listed in the theme's index.theme
+     * @return opened cache or null if it is missing, stale or unreadable
+     */
+    public static IconThemeCache open(Path themeRoot, List<ThemeDirectory> directories)
+    {
+        Path cacheFile = themeRoot.resolve(CACHE_FILE_NAME);
+
+        if (themeRoot.getFileSystem() != FileSystems.getDefault() || !Files.isRegularFile(cacheFile))
+            return null;
+
+        try
+        {
+            FileTime cacheTime = Files.getLastModifiedTime(cacheFile);
+
+            if (cacheTime.compareTo(Files.getLastModifiedTime(themeRoot)) < 0)
+            {
+                log.info("Ignoring stale icon cache '{}'.", cacheFile.toString());
+                return null;
+            }
+
+            // The listings carry the times checked here, so that reloading only rescans
+            // directories that change after the cache has been read
+            HashMap<String, Long> directoryTimes = new HashMap<>();
+
+            for (ThemeDirectory directory : directories)
+            {
+                if (!Files.isDirectory(directory.path))
+                    continue;
+
+                FileTime directoryTime = Files.getLastModifiedTime(directory.path);
+                if (cacheTime.compareTo(directoryTime) < 0)
+                {
+                    log.info("Ignoring icon cache '{}', directory '{}' has been modified after it.",
+                             cacheFile.toString(), directory.name);
+                    return null;
+                }
+
+                directoryTimes.put(directory.name, directoryTime.toMillis());
+            }
+
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ))
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            if (buffer.getShort(0) != MAJOR_VERSION || buffer.getShort(2) != MINOR_VERSION)
+            {
+                log.info("Ignoring icon cache '{}' of unsupported version {}.{}.",
+                         cacheFile.toString(), buffer.getShort(0), buffer.getShort(2));
+                return null;
+            }
+
+            return new IconThemeCache(cacheFile, buffer, directoryTimes);
+        }
+        catch (IOException | UnsupportedOperationException | IndexOutOfBoundsException e)
+        {
+            log.warn("Could not open icon cache '{}': {}", cacheFile.toString(), e.toString());
+        }
+
+        return null;
+    }
+
+    /**
+     * Construct a listing of PNG icons for each of the given directories.
+     *
+     * Directories that are present in the cache but not in the list are ignored.
+     * Each listing is stamped with the modification time its directory had when
+     * the cache was opened, 0 for directories that do not exist.
+     *
+     * @param directories directories listed in the theme's index.theme
+     * @return listing of each directory, in the order of the directories list,
+     *         or null if the cache turned out to be corrupted
+     */
+    public List<DirectoryListing> listDirectories(List<ThemeDirectory> directories)
+    {
+        ArrayList<DirectoryListing> listings = new ArrayList<>(directories.size());
+        HashMap<String, Integer> directoryIndexes = new HashMap<>();
+
+        for (int i = 0; i < directories.size(); i++)
+        {
+            Long modified = directoryTimes.get(directories.get(i).name);
+
+            listings.add(new DirectoryListing(modified == null ? 0 : modified));
+            directoryIndexes.put(directories.get(i).name, i);
+        }
+
+        try
+        {
+            // Translate the cache's own directory indexes to ours, -1 if not in use
+            int directoryListOffset = getOffset(8);
+            int cacheDirectoryCount = getOffset(directoryListOffset);
+            int[] mapping = new int[cacheDirectoryCount];
+
+            for (int i = 0; i < cacheDirectoryCount; i++)
+            {
+                Integer index = directoryIndexes.get(readString(getOffset(directoryListOffset + 4 + 4 * i)));
+                mapping[i] = index == null ? -1 : index;
+            }
+
+            int hashOffset = getOffset(4);
+            int bucketCount = getOffset(hashOffset);
+
+            // A chain that loops back on itself would be followed forever, yet no more icons fit in the file
+            int maxIcons = buffer.limit() / ICON_SIZE;
+            int icons = 0;
+
+            for (int bucket = 0; bucket < bucketCount; bucket++)
+            {
+                int iconOffset = buffer.getInt(hashOffset + 4 + 4 * bucket);
+
+                // Every bucket is a linked list of icons, terminated by 0xFFFFFFFF
+                while (iconOffset != NO_OFFSET)
+                {
+                    if (++icons > maxIcons)
+                        throw new IndexOutOfBoundsException("Icon chain of bucket " + bucket + " loops");
+
+                    String iconName = readString(getOffset(iconOffset + 4));
+                    int imageListOffset = getOffset(iconOffset + 8);
+                    int imageCount = getOffset(imageListOffset);
+
+                    for (int i = 0; i < imageCount; i++)
+                    {
+                        int imageOffset = imageListOffset + 4 + 8 * i;
+                        int directoryIndex = buffer.getShort(imageOffset) & 0xFFFF;
+                        int flags = buffer.getShort(imageOffset + 2) & 0xFFFF;
+
+                        if ((flags & FLAG_PNG) != 0 && directoryIndex < mapping.length &&
+                            mapping[directoryIndex] != -1)
+                        {
+                            listings.get(mapping[directoryIndex]).add(iconName);
+                        }
+                    }
+
+                    iconOffset = buffer.getInt(iconOffset);
+                }
+            }
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e)
+        {
+            log.warn("Icon cache '{}' is corrupted: {}", cacheFile.toString(), e.toString());
+            return null;
+        }
+
+        return listings;
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private static final Logger log = LoggerFactory.getLogger(IconThemeCache.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final short MAJOR_VERSION = 1;
+    private static final short MINOR_VERSION = 0;
+    private static final int NO_OFFSET = 0xFFFFFFFF;
+    private static final int FLAG_PNG = 4;
+    // Chain, name and image list offsets
+    private static final int ICON_SIZE = 12;
+
+    private final Path cacheFile;
+    private final ByteBuffer buffer;
+    private final HashMap<String, Long> directoryTimes;
+
+    private IconThemeCache(Path cacheFile, ByteBuffer buffer, HashMap<String, Long> directoryTimes)
+    {
+        this.cacheFile = cacheFile;
+        this.buffer = buffer;
+        this.directoryTimes = directoryTimes;
+    }
+
+    /**
+     * Read an unsigned 32-bit offset or count stored at the given position.
+     *
+     * @param position position of the value in the file
+     * @return value that is guaranteed to be inside the file
+     */
+    private int getOffset(int position)
+    {
+        int value = buffer.getInt(position);
+
+        if (value < 0 || value >= buffer.limit())
+            throw new IndexOutOfBoundsException("Offset " + value + " at " + position + " is out of bounds");
+
+        return value;
+    }
+
+    /**
+     * Read a NUL-terminated string.
+     *
+     * @param position position of the first character
+     * @return decoded string
+     */
+    private String readString(int position)
+    {
+        int end = position;
+        while (buffer.get(end) != 0)
+            end++;
+
+        byte[] bytes = new byte[end - position];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(position + i);
+
+        return new String(bytes, UTF_8);
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
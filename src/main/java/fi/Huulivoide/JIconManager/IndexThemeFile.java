@@ -0,0 +1,366 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Contents of an index.theme file, read in a single streaming pass.
+ *
+ * Only the keys JIconManager uses are kept. The directories are stored as a table
+ * of parallel arrays, in the order they are listed in the Directories-key.
+ */
+class IndexThemeFile
+{
+    //    region Public    //
+    /////////////////////////
+
+    public static final int TYPE_FIXED = 0;
+    public static final int TYPE_SCALABLE = 1;
+    public static final int TYPE_THRESHOLD = 2;
+
+    /**
+     * Parse an index.theme file.
+     *
+     * @param themeFile path to the index.theme file
+     * @return parsed file
+     * @throws IOException if the file cannot be read
+     * @throws MalformedIconThemeFileException if the file has no [Icon Theme] section
+     */
+    public static IndexThemeFile parse(Path themeFile) throws IOException, MalformedIconThemeFileException
+    {
+        IndexThemeFile file = new IndexThemeFile(themeFile);
+
+        try (BufferedReader reader = Files.newBufferedReader(themeFile, UTF_8))
+        {
+            file.read(reader);
+        }
+
+        file.buildDirectoryTable();
+
+        return file;
+    }
+
+    /**
+     * Parse only the [Icon Theme] section of an index.theme file.
+     *
+     * Reading stops at the end of the section. The directory table only has
+     * the directory names filled in, their own sections are never read.
+     *
+     * @param themeFile path to the index.theme file
+     * @return parsed file
+     * @throws IOException if the file cannot be read
+     * @throws MalformedIconThemeFileException if the file has no [Icon Theme] section
+     */
+    public static IndexThemeFile parseInfo(Path themeFile) throws IOException, MalformedIconThemeFileException
+    {
+        IndexThemeFile file = new IndexThemeFile(themeFile);
+        file.infoOnly = true;
+
+        try (BufferedReader reader = Files.newBufferedReader(themeFile, UTF_8))
+        {
+            file.read(reader);
+        }
+
+        LinkedHashSet<String> names = file.getDirectoryNames();
+        file.directoryCount = names.size();
+        file.directoryNames = names.toArray(new String[names.size()]);
+
+        return file;
+    }
+
+    // [Icon Theme] section, null if the key is missing
+    public String name;
+    public String comment;
+    public String inherits;
+    public String example;
+    public boolean hidden;
+
+    // Directory table, one entry per directory in the order of the Directories-key
+    public int directoryCount;
+    public String[] directoryNames;
+    public int[] sizes;
+    public int[] types;
+    public int[] minSizes;
+    public int[] maxSizes;
+    public int[] thresholds;
+    public int[] scales;
+    public String[] contexts;
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private static final Logger log = LoggerFactory.getLogger(IndexThemeFile.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String INFO_SECTION = "Icon Theme";
+
+    // Correctly written forms of the [Icon Theme] keys, by their lower case form
+    private static final HashMap<String, String> KEY_CASES = new HashMap<>();
+    static
+    {
+        for (String key : new String[] { "Name", "Comment", "Inherits", "Example", "Hidden",
+                                         "Directories", "ScaledDirectories" })
+            KEY_CASES.put(key.toLowerCase(), key);
+    }
+
+    private final Path themeFile;
+    private boolean infoOnly;
+    private boolean hasInfoSection;
+    private String directoriesKey;
+    private String scaledDirectoriesKey;
+
+    // Directory sections, collected in any order and sorted out once the whole file has been read
+    private final HashMap<String, DirectorySection> sections;
+
+    private static class DirectorySection
+    {
+        int size = -1;
+        int type = TYPE_THRESHOLD;
+        int minSize = -1;
+        int maxSize = -1;
+        int threshold = 2;
+        int scale = 1;
+        String context;
+    }
+
+    private IndexThemeFile(Path themeFile)
+    {
+        this.themeFile = themeFile;
+        sections = new HashMap<>();
+    }
+
+    private void read(BufferedReader reader) throws IOException, MalformedIconThemeFileException
+    {
+        boolean inInfoSection = false;
+        DirectorySection section = null;
+        String line;
+
+        while ((line = reader.readLine()) != null)
+        {
+            line = line.trim();
+
+            if (line.length() == 0 || line.charAt(0) == '#' || line.charAt(0) == ';')
+                continue;
+
+            if (line.charAt(0) == '[' && line.charAt(line.length() - 1) == ']')
+            {
+                String sectionName = line.substring(1, line.length() - 1);
+                section = null;
+
+                // Nothing after the [Icon Theme] section is of interest
+                if (infoOnly && inInfoSection)
+                    break;
+
+                inInfoSection = false;
+
+                if (sectionName.equalsIgnoreCase(INFO_SECTION))
+                {
+                    if (!sectionName.equals(INFO_SECTION))
+                        log.warn("Malformed theme file '{}': section '[{}]' should be '[Icon Theme]'.",
+                                 themeFile.toString(), sectionName);
+
+                    inInfoSection = true;
+                    hasInfoSection = true;
+                }
+                else if (!infoOnly)
+                {
+                    section = new DirectorySection();
+                    sections.put(sectionName, section);
+                }
+
+                continue;
+            }
+
+            int separator = line.indexOf('=');
+
+            // Skip broken lines and translations, i.e. Name[fi]=
+            if (separator <= 0 || line.lastIndexOf('[', separator) != -1)
+                continue;
+
+            String key = line.substring(0, separator).trim();
+            String value = line.substring(separator + 1).trim();
+
+            if (inInfoSection)
+                readInfoKey(key, value);
+            else if (section != null)
+                readDirectoryKey(section, key, value);
+        }
+
+        if (!hasInfoSection)
+            throw new MalformedIconThemeFileException("Section [Icon Theme] missing from file: " +
+                                                      themeFile.toString());
+    }
+
+    private void readInfoKey(String key, String value)
+    {
+        String lowerKey = key.toLowerCase();
+
+        switch (lowerKey)
+        {
+            case "name":
+                name = value;
+                break;
+            case "comment":
+                comment = value;
+                break;
+            case "inherits":
+                inherits = value;
+                break;
+            case "example":
+                example = value;
+                break;
+            case "hidden":
+                hidden = value.equalsIgnoreCase("true");
+                break;
+            case "directories":
+                directoriesKey = value;
+                break;
+            case "scaleddirectories":
+                scaledDirectoriesKey = value;
+                break;
+            default:
+                return;
+        }
+
+        if (!key.equals(KEY_CASES.get(lowerKey)))
+            log.warn("Malformed theme file '{}': [Icon Theme] section's key '{}' should be '{}'.",
+                     themeFile.toString(), key, KEY_CASES.get(lowerKey));
+    }
+
+    private void readDirectoryKey(DirectorySection section, String key, String value)
+    {
+        try
+        {
+            switch (key)
+            {
+                case "Size":
+                    section.size = Integer.parseInt(value);
+                    break;
+                case "MinSize":
+                    section.minSize = Integer.parseInt(value);
+                    break;
+                case "MaxSize":
+                    section.maxSize = Integer.parseInt(value);
+                    break;
+                case "Threshold":
+                    section.threshold = Integer.parseInt(value);
+                    break;
+                case "Scale":
+                    section.scale = Integer.parseInt(value);
+                    break;
+                case "Context":
+                    section.context = value;
+                    break;
+                case "Type":
+                    if (value.equalsIgnoreCase("Fixed"))
+                        section.type = TYPE_FIXED;
+                    else if (value.equalsIgnoreCase("Scalable"))
+                        section.type = TYPE_SCALABLE;
+                    else if (value.equalsIgnoreCase("Threshold"))
+                        section.type = TYPE_THRESHOLD;
+                    else
+                        log.warn("Malformed theme file '{}': unknown directory type '{}'.",
+                                 themeFile.toString(), value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("Malformed theme file '{}': key '{}' has invalid value '{}'.",
+                     themeFile.toString(), key, value);
+        }
+    }
+
+    private LinkedHashSet<String> getDirectoryNames()
+    {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        addDirectoryNames(directoriesKey, names);
+        addDirectoryNames(scaledDirectoriesKey, names);
+
+        return names;
+    }
+
+    private void buildDirectoryTable()
+    {
+        LinkedHashSet<String> names = getDirectoryNames();
+
+        directoryNames = new String[names.size()];
+        sizes = new int[names.size()];
+        types = new int[names.size()];
+        minSizes = new int[names.size()];
+        maxSizes = new int[names.size()];
+        thresholds = new int[names.size()];
+        scales = new int[names.size()];
+        contexts = new String[names.size()];
+
+        for (String directoryName : names)
+        {
+            DirectorySection section = sections.get(directoryName);
+
+            // Size is the only required key
+            if (section == null || section.size < 0)
+            {
+                log.warn("Malformed theme file '{}': directory '{}' has no section or no Size-key, ignoring it.",
+                         themeFile.toString(), directoryName);
+                continue;
+            }
+
+            int i = directoryCount++;
+            directoryNames[i] = directoryName;
+            sizes[i] = section.size;
+            types[i] = section.type;
+            minSizes[i] = section.minSize < 0 ? section.size : section.minSize;
+            maxSizes[i] = section.maxSize < 0 ? section.size : section.maxSize;
+            thresholds[i] = section.threshold;
+            scales[i] = section.scale;
+            contexts[i] = section.context;
+        }
+    }
+
+    private static void addDirectoryNames(String key, LinkedHashSet<String> names)
+    {
+        if (key == null)
+            return;
+
+        for (String directoryName : key.split(","))
+        {
+            directoryName = directoryName.trim();
+
+            if (directoryName.length() > 0)
+                names.add(directoryName);
+        }
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
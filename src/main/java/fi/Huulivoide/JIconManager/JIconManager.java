@@ -16,16 +16,17 @@
 
 package fi.Huulivoide.JIconManager;
 
-import org.omg.CORBA.portable.InputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.swing.ImageIcon;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.*;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * JIconManager allows you to easily access all of the icons you have bundled
@@ -118,15 +119,207 @@ public class JIconManager
     public JIconManager(Path applicationThemeFile, String systemThemeName)
             throws MalformedIconThemeFileException, ThemeNotFoundException
     {
-        this.applicationTheme = null;
+        this(applicationThemeFile, systemThemeName, ScanMode.EAGER);
+    }
+
+
+    /**
+     * Construct an JIconManager that prefers system icons, falling back to bundled icons if needed.
+     *
+     * Works like {@link #JIconManager(Path, String)}, but lets one choose when the
+     * directories of the loaded themes are scanned for icons. Applications that only
+     * use a few icon sizes start faster with {@link ScanMode#LAZY}.
+     *
+     * @param applicationThemeFile path to the index.theme file
+     * @param systemThemeName name of an icon theme installed on the system
+     * @param scanMode when to scan the directories of the loaded themes
+     * @throws MalformedIconThemeFileException in case index.theme has serious flaws
+     * @throws ThemeNotFoundException in the specified theme cannot be found
+     *
+     * @see #DEFAULT_THEME
+     * @see ScanMode
+     */
+    public JIconManager(Path applicationThemeFile, String systemThemeName, ScanMode scanMode)
+            throws MalformedIconThemeFileException, ThemeNotFoundException
+    {
+        this(applicationThemeFile, systemThemeName, scanMode, ScanProfile.ALL);
+    }
+
+
+    /**
+     * Construct an JIconManager that only indexes the parts of the themes the application uses.
+     *
+     * Works like {@link #JIconManager(Path, String, ScanMode)}, but directories of the loaded
+     * themes that are outside of the given profile are skipped altogether.
+     *
+     * @param applicationThemeFile path to the index.theme file
+     * @param systemThemeName name of an icon theme installed on the system
+     * @param scanMode when to scan the directories of the loaded themes
+     * @param scanProfile sizes, scales and contexts of the directories that are indexed
+     * @throws MalformedIconThemeFileException in case index.theme has serious flaws
+     * @throws ThemeNotFoundException in the specified theme cannot be found
+     *
+     * @see #DEFAULT_THEME
+     * @see ScanProfile
+     */
+    public JIconManager(Path applicationThemeFile, String systemThemeName, ScanMode scanMode,
+                        ScanProfile scanProfile) throws MalformedIconThemeFileException, ThemeNotFoundException
+    {
         this.systemTheme = null;
+        this.scanMode = scanMode;
+        this.scanProfile = scanProfile;
 
         if (systemThemeName != null && SYSTEM_SUPPORTS_THEMES)
             loadSystemTheme(systemThemeName);
 
 
-        applicationTheme = new Theme(applicationThemeFile, false);
+        if (applicationThemeFile != null)
+            applicationTheme = new Theme(applicationThemeFile, false, scanMode, scanProfile);
+        else
+            applicationTheme = null;
+
+        resolutionTable = new ResolutionTable(systemTheme, applicationTheme, nameFallback);
+
+    }
+
+
+    /**
+     * Construct an JIconManager that loads the system theme in the background.
+     *
+     * The application theme is loaded before this method returns, so that the application
+     * can build its first window right away. The system theme and the themes it inherits are
+     * loaded in a background thread. Until they are ready {@link #getIcon(String, int)}
+     * answers from the application theme only.
+     *
+     * <br><br>
+     *
+     * The result of the background loading is available from {@link #getSystemThemeFuture()}.
+     * Exceptions thrown by {@link #loadSystemTheme(String)} are reported through it.
+     *
+     * @param applicationThemeFile path to the index.theme file
+     * @param systemThemeName name of an icon theme installed on the system
+     * @param scanMode when to scan the directories of the loaded themes
+     * @param onSystemThemeLoaded run in the background thread once the system theme has been
+     *                            loaded or has failed to load, may be null
+     * @return JIconManager with the application theme loaded
+     * @throws MalformedIconThemeFileException in case the application's index.theme has serious flaws
+     *
+     * @see #DEFAULT_THEME
+     */
+    public static JIconManager openAsync(Path applicationThemeFile, String systemThemeName,
+                                         ScanMode scanMode, Runnable onSystemThemeLoaded)
+            throws MalformedIconThemeFileException
+    {
+        return openAsync(applicationThemeFile, systemThemeName, scanMode, ScanProfile.ALL, onSystemThemeLoaded);
+    }
+
+
+    /**
+     * Construct an JIconManager that loads the system theme in the background,
+     * indexing only the directories within the given profile.
+     *
+     * @param applicationThemeFile path to the index.theme file
+     * @param systemThemeName name of an icon theme installed on the system
+     * @param scanMode when to scan the directories of the loaded themes
+     * @param scanProfile sizes, scales and contexts of the directories that are indexed
+     * @param onSystemThemeLoaded run in the background thread once the system theme has been
+     *                            loaded or has failed to load, may be null
+     * @return JIconManager with the application theme loaded
+     * @throws MalformedIconThemeFileException in case the application's index.theme has serious flaws
+     *
+     * @see #openAsync(Path, String, ScanMode, Runnable)
+     */
+    public static JIconManager openAsync(Path applicationThemeFile, final String systemThemeName,
+                                         ScanMode scanMode, ScanProfile scanProfile,
+                                         final Runnable onSystemThemeLoaded)
+            throws MalformedIconThemeFileException
+    {
+        final JIconManager manager;
+
+        try
+        {
+            manager = new JIconManager(applicationThemeFile, null, scanMode, scanProfile);
+        }
+        catch (ThemeNotFoundException e) // Only thrown when loading a system theme
+        {
+            throw new IllegalStateException(e);
+        }
+
+        FutureTask<Boolean> loader = new FutureTask<Boolean>(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                if (systemThemeName == null || !SYSTEM_SUPPORTS_THEMES)
+                    return false;
+
+                return manager.loadSystemTheme(systemThemeName);
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                if (onSystemThemeLoaded != null)
+                    onSystemThemeLoaded.run();
+            }
+        };
+
+        manager.systemThemeFuture = loader;
+
+        Thread loaderThread = new Thread(loader, "JIconManager system theme loader");
+        loaderThread.setDaemon(true);
+        loaderThread.start();
+
+        return manager;
+    }
+
 
+    /**
+     * Construct an JIconManager that loads the system theme in the background.
+     *
+     * @param applicationThemeFile path to the index.theme file
+     * @param systemThemeName name of an icon theme installed on the system
+     * @return JIconManager with the application theme loaded
+     * @throws MalformedIconThemeFileException in case the application's index.theme has serious flaws
+     *
+     * @see #openAsync(Path, String, ScanMode, Runnable)
+     */
+    public static JIconManager openAsync(Path applicationThemeFile, String systemThemeName)
+            throws MalformedIconThemeFileException
+    {
+        return openAsync(applicationThemeFile, systemThemeName, ScanMode.EAGER, null);
+    }
+
+
+    /**
+     * Get the result of loading the system theme in the background.
+     *
+     * For JIconManagers not created with openAsync, the returned future is already done.
+     *
+     * @return future telling whether a new system theme was loaded
+     *
+     * @see #openAsync(Path, String, ScanMode, Runnable)
+     */
+    public Future<Boolean> getSystemThemeFuture()
+    {
+        Future<Boolean> future = systemThemeFuture;
+
+        if (future == null)
+        {
+            FutureTask<Boolean> done = new FutureTask<>(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                }
+            }, systemTheme != null);
+
+            done.run();
+            future = done;
+        }
+
+        return future;
     }
 
 
@@ -143,14 +336,15 @@ public class JIconManager
      *
      * @see #DEFAULT_THEME
      */
-    public boolean loadSystemTheme(String themeName) throws MalformedIconThemeFileException, ThemeNotFoundException
+    public synchronized boolean loadSystemTheme(String themeName)
+            throws MalformedIconThemeFileException, ThemeNotFoundException
     {
         Theme oldTheme = systemTheme;
 
-        if (themeName == DEFAULT_THEME)
+        if (DEFAULT_THEME.equals(themeName))
             themeName = getDefaultTheme();
 
-        Path themePath = systemThemes.get(themeName);
+        Path themePath = ThemeRegistry.getThemeFile(themeName);
 
         if (themePath == null)
             throw new ThemeNotFoundException("Theme '" + themeName + "' is not installed.");
@@ -158,7 +352,10 @@ public class JIconManager
 
         try
         {
-            systemTheme = new Theme(themePath, true);
+            // The theme is fully loaded before the volatile writes make it visible to getIcon
+            systemTheme = new Theme(themePath, ThemeRegistry.getThemeRoots(themeName), true, scanMode,
+                                    scanProfile);
+            resolutionTable = new ResolutionTable(systemTheme, applicationTheme, nameFallback);
         }
         catch (MalformedIconThemeFileException e)
         {
@@ -178,8 +375,10 @@ public class JIconManager
      * Fetch the named icon of specified size.
      * If no icon of that name is found from the loaded system theme or the fallback
      * application theme a null value is returned.
-     * If no icon of the requested size is found, the largest instance of the names
-     * icon will be scaled instead.
+     * If no icon of the requested size is found, the instance closest to that size is
+     * scaled instead, as told by DirectoryMatchesSize and DirectorySizeDistance of the
+     * icon theme specification. Of equally close instances the smallest one at least
+     * the requested size is preferred, as scaling down looks better than scaling up.
      *
      * <br><br>
      *
@@ -198,215 +397,224 @@ public class JIconManager
      */
     public ImageIcon getIcon(String name, int size)
     {
-        ImageIcon icon = null;
+        // Read once, the system theme may be swapped by another thread
+        ResolutionTable table = resolutionTable;
 
-        if (systemTheme != null)
-            icon = systemTheme.getIcon(name, size);
-        if (icon == null)
-            icon = applicationTheme.getIcon(name, size);;
+        if (table == null)
+            return null;
 
-        return icon;
+        return table.getIcon(name, size);
     }
 
 
-    /////////////////////////
-    //  endregion Public   //
-
-
-    //  region Protected   //
-    /////////////////////////
-
     /**
-     * Return the path of the index.theme file for the named theme.
+     * Find out which file the requested icon would be loaded from, without loading it.
      *
-     * @param themeName name of the theme
-     * @return Path to theme/index.theme
+     * The themes are searched and the source chosen exactly like {@link #getIcon(String, int)}
+     * does, but only the icon index is used, no image is read or decoded. Lazily scanned
+     * directories may still be scanned to find the icon.
+     *
+     * @param name name of the requested icon
+     * @param size size of the requested icon
+     * @return source of the icon or null if no icon of given name is found
      */
-    protected static Path getSystemTheme(String themeName)
+    public IconSource resolve(String name, int size)
     {
-        return systemThemes.get(themeName);
-    }
-
-
-    /////////////////////////
-    // endregion Protected //
+        ResolutionTable table = resolutionTable;
 
+        if (table == null)
+            return null;
 
-    //   region Private    //
-    /////////////////////////
-
-    private String systemThemeName;
+        Theme.Resolution resolution = table.resolve(name, size);
 
-    private Theme systemTheme;
-    private Theme applicationTheme;
+        if (resolution == null)
+            return null;
 
+        return resolution.getSource(name, size);
+    }
 
-    private static final Logger log = LoggerFactory.getLogger(JIconManager.class);
 
-    private static final boolean SYSTEM_SUPPORTS_THEMES = systemSupportsThemes();
+    /**
+     * Find the requested icon from the directories of one context only.
+     *
+     * Contexts are given by the Context-key of the theme's directories, for example
+     * Actions, Applications, MimeTypes, Places or Status. Directories of the other contexts
+     * are not searched, and with lazy scanning not even loaded. Icons of directories
+     * without a context are only found by {@link #getIcon(String, int)}.
+     *
+     * @param name name of the requested icon
+     * @param size size of the requested icon
+     * @param context name of the context, case is ignored
+     * @return ImageIcon or null if no icon of given name is found in the context
+     */
+    public ImageIcon getIcon(String name, int size, String context)
+    {
+        ResolutionTable table = resolutionTable;
 
-    private static final Path SYSTEM_THEMES_DIRECTORY = Paths.get("/usr/share/icons");
-    private static final Path SYSTEM_THEMES_LOCAL_DIRECTORY = Paths.get("/usr/local/share/icons");
-    private static final Path USER_HOME_ICONS = getPathFromEnviroinment("HOME", ".icons");
-    private static final Path XGD_DATA_DIR_ICONS = getPathFromEnviroinment("XGD_DATA_DIRS", "icons");
+        if (table == null)
+            return null;
 
-    private static final HashMap<String, Path> systemThemes = listInstalledThemes();
+        return table.getIcon(name, size, context);
+    }
 
 
     /**
-     * Construct to a path to icon directory obtained from an enviroinment variable like HOME or XDG_DATA_DIR
+     * Find the first available icon of a list of names, in order of preference.
      *
-     * @param variable name if the enviroinment variable
-     * @param path append to end of the variable
-     * @return Path object or null if variable is empty
+     * Like {@link #getIcon(String, int)}, but each theme is searched for every name
+     * before moving on to the next theme, so for example an icon of a less preferred name
+     * in the system theme wins a preferred one that only the application theme has.
+     * Only the icon returned is read from disk.
+     *
+     * @param names names of the icons, most preferred first
+     * @param size requested size
+     * @return the icon or null if none of the names is found
      */
-    private static Path getPathFromEnviroinment(String variable, String path)
+    public ImageIcon getIcon(String[] names, int size)
     {
-        String VARIABLE = System.getenv(variable);
-        Path iconPath = null;
+        ResolutionTable table = resolutionTable;
 
-        if (VARIABLE != null)
-        {
-            iconPath = Paths.get(VARIABLE, path);
+        if (table == null || names.length == 0)
+            return null;
 
-            if (Files.exists(iconPath))
-                return iconPath;
-        }
-
-        return null;
+        return table.getIcon(names, size);
     }
 
+
     /**
-     * Check whether the system supports themes i.e is Linux or some BSD system
+     * Fall back to more generic icon names when no theme has the requested one.
+     *
+     * As described in the icon naming specification, the name is shortened by removing its
+     * last dash separated part until an icon is found, i.e. network-wireless-signal-good-symbolic
+     * falls back to network-wireless-signal-good, then to network-wireless-signal and so on.
+     * Every theme is searched for the longer name before any theme is searched for a shorter one.
+     * The icon found is remembered for the requested name. Disabled by default.
      *
-     * @return true if supported, false if not
+     * @param enabled true to enable the fallback
      */
-    private static boolean systemSupportsThemes()
+    public synchronized void setNameFallback(boolean enabled)
     {
-        String osName = System.getProperty("os.name");
-
-        // TODO Check if OpenBSD really is "OpenBSD" or something else
-        return (osName.equals("Linux") || osName.equals("FreeBSD") || osName.equals("OpenBSD"));
+        nameFallback = enabled;
+        resolutionTable = new ResolutionTable(systemTheme, applicationTheme, nameFallback);
     }
 
+
     /**
-     * Construct a list all themes installed systemwide or to user's home directory.
+     * Reload the icon directories of the loaded themes that have changed on disk.
      *
-     * @return list of installed themes
+     * Only directories whose modification time has changed are rescanned. Remembered
+     * lookups, including lookups that found nothing, are forgotten if anything changed.
+     *
+     * @return true if any directory had changed
      */
-    private static HashMap<String, Path> listInstalledThemes()
+    public boolean reloadChangedThemes()
     {
-        HashMap<String, Path> foundThemes = new HashMap<>();
-
-        if (systemSupportsThemes())
-        {
+        boolean changed = false;
 
-            if (XGD_DATA_DIR_ICONS != null)
-                findThemesFromDirectory(XGD_DATA_DIR_ICONS, foundThemes);
+        Theme system = systemTheme;
+        if (system != null && system.reloadChangedDirectories())
+            changed = true;
+        if (applicationTheme != null && applicationTheme.reloadChangedDirectories())
+            changed = true;
 
-            if (USER_HOME_ICONS != null)
-                findThemesFromDirectory(USER_HOME_ICONS, foundThemes);
+        return changed;
+    }
 
-            if (SYSTEM_THEMES_LOCAL_DIRECTORY != null)
-                findThemesFromDirectory(SYSTEM_THEMES_LOCAL_DIRECTORY, foundThemes);
 
-            if (SYSTEM_THEMES_DIRECTORY != null)
-                findThemesFromDirectory(SYSTEM_THEMES_DIRECTORY, foundThemes);
+    /**
+     * List the names of the icons found in one context of the system theme,
+     * the themes it inherits and the application theme.
+     *
+     * Every directory of the context is loaded, directories of the other contexts are not.
+     *
+     * @param context name of the context, e.g. MimeTypes, case is ignored
+     * @return sorted names of the icons in the context, empty if there are none
+     */
+    public Set<String> listIcons(String context)
+    {
+        TreeSet<String> iconNames = new TreeSet<>();
 
-        }
+        Theme system = systemTheme;
+        if (system != null)
+            iconNames.addAll(system.listIcons(context));
+        if (applicationTheme != null)
+            iconNames.addAll(applicationTheme.listIcons(context));
 
-        return foundThemes;
+        return Collections.unmodifiableSet(iconNames);
     }
 
 
     /**
-     * Scan given directory for icon themes.
+     * Get the number of icon decodes saved by coalescing concurrent loads.
      *
-     * Proceed to each direct subdirectory in the given path and look for a file
-     * name 'index.theme'.
+     * When several threads ask for the same missing icon at the same time, only the first
+     * one reads and scales the image while the others wait for its result. This counts
+     * the waiting lookups of every JIconManager in the JVM.
      *
-     * @param iconsDirectoryRoot path to themes-folder root
-     * @param foundThemes list of found icon themes
+     * @return number of decodes saved so far
      */
-    private static void findThemesFromDirectory(Path iconsDirectoryRoot, HashMap<String, Path> foundThemes)
+    public static long getSavedDecodeCount()
     {
-       try (DirectoryStream<Path> rootStream = Files.newDirectoryStream(iconsDirectoryRoot))
-       {
-           for (Path candidate : rootStream)
-           {
-               // Ignore any files we might find in the root, they are of no interest to us
-               if (Files.isDirectory(candidate))
-               {
-                   try (DirectoryStream<Path> subdirStream = Files.newDirectoryStream(candidate))
-                   {
-                       for (Path file : subdirStream)
-                       {
-                           if (file.getFileName().toString().equals("index.theme"))
-                               foundThemes.put(candidate.getFileName().toString(), file);
-                       }
-                   }
-                   catch (IOException e) // Catch here so we can try the other dirs also
-                   {
-                       log.warn("Could not process directory '{}' file looking for installed themes." +
-                                "Java error message: {}", candidate.toString(), e.getMessage());
-                   }
-               }
-           }
-       }
-       catch (NotDirectoryException e)
-       {
-           log.warn("Path '{}' is not an directory and cannot be opened.", iconsDirectoryRoot.toString());
-       }
-       catch (IOException e)
-       {
-           log.warn("An error happened while trying to list themes installed in '{}. " +
-                    "Error: {}", iconsDirectoryRoot.toString(), e.getMessage());
-       }
+        return Theme.getSavedDecodeCount();
     }
 
 
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //  region Protected   //
+    /////////////////////////
+
     /**
-     * Try to get user's default icon theme from Gnome 3's DConf.
+     * Return the path of the index.theme file for the named theme.
      *
-     * @return icon-theme name or null if not found
+     * @param themeName name of the theme
+     * @return Path to theme/index.theme
+     *
+     * @see ThemeRegistry#getThemeFile(String)
      */
-    private String getDconfTheme()
+    protected static Path getSystemTheme(String themeName)
     {
-        String result = null;
+        return ThemeRegistry.getThemeFile(themeName);
+    }
 
-        try
-        {
-            Process dconfProcess = Runtime.getRuntime().exec("dconf read /org/gnome/desktop/interface/icon-theme");
-            BufferedReader resultStream = new BufferedReader(new InputStreamReader(dconfProcess.getInputStream()));
 
-            result = resultStream.readLine();
-        }
-        catch (IOException e)
-        {
-            log.info("Could not determinate default theme from dconf. Reason: " + e.getMessage());
-        }
+    /////////////////////////
+    // endregion Protected //
 
-        if (result != null && result.length() > 0)
-        {
-            result = result.substring(1, result.length() - 1);
-        }
 
-        return result;
-    }
+    //   region Private    //
+    /////////////////////////
+
+    private String systemThemeName;
+    private final ScanMode scanMode;
+    private final ScanProfile scanProfile;
+
+    // Written by the background loader of openAsync, read by getIcon
+    private volatile Theme systemTheme;
+    // Search order of the current themes, replaced together with the system theme
+    private volatile ResolutionTable resolutionTable;
+    private boolean nameFallback;
+    private final Theme applicationTheme;
+    private volatile Future<Boolean> systemThemeFuture;
+
+
+    private static final Logger log = LoggerFactory.getLogger(JIconManager.class);
+
+    private static final boolean SYSTEM_SUPPORTS_THEMES = ThemeRegistry.systemSupportsThemes();
+
 
     /**
      * Try to determinate user's default theme.
      *
-     * Tries to solve the theme name from:
-     * <ol>
-     *     <li>DConf</li>
-     * </ol>
+     * @return theme name, or DEFAULT_THEME if it cannot be determined
      *
-     * @return
+     * @see DefaultThemeResolver
      */
     private String getDefaultTheme()
     {
-        String theme = getDconfTheme();
+        String theme = DefaultThemeResolver.getDefaultTheme();
 
         if (theme == null)
             theme = DEFAULT_THEME;
@@ -0,0 +1,494 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import javax.swing.ImageIcon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Flattened lookup table for the whole search order of a JIconManager:
+ * the system theme, the themes it inherits, hicolor and finally the application theme.
+ *
+ * Each icon name is mapped to the theme that wins it and that theme's per-size sources,
+ * so that a repeated lookup costs a single hash probe instead of walking the chain.
+ *
+ * <br><br>
+ *
+ * Inherited themes are only loaded when a lookup falls through to them, so the table is
+ * filled name by name as icons are first requested rather than all at once. A theme that
+ * does not have a name after a lookup has scanned every one of its directories, so an entry
+ * never goes stale while the themes stay the same. Replacing the system theme replaces the table.
+ *
+ * <br><br>
+ *
+ * With name fallback the result found for a more generic name is remembered under the
+ * requested name, so the chain of shorter names is only searched once per name.
+ *
+ * <br><br>
+ *
+ * Lookups restricted to a context are remembered separately for each context.
+ *
+ * <br><br>
+ *
+ * Names no theme has are remembered too, by name, size and context, in a bounded cache of
+ * the most recent misses.
+ *
+ * <br><br>
+ *
+ * When one of the themes searched by the table reloads directories changed on disk, only the
+ * results for the names found in those directories are forgotten, along with the longer names
+ * that fell back to them. Results of other names are kept and follow the theme's rebuilt index.
+ * A table that missed too many reloads of a theme forgets everything instead. Reloads of themes
+ * the table does not search leave it alone.
+ */
+class ResolutionTable
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * @param systemTheme system theme, may be null
+     * @param applicationTheme application theme, may be null
+     * @param nameFallback true to fall back to more generic names, by removing the last
+     *                     dash separated part of the name, when no theme has an icon
+     */
+    public ResolutionTable(Theme systemTheme, Theme applicationTheme, boolean nameFallback)
+    {
+        this.systemTheme = systemTheme;
+        this.applicationTheme = applicationTheme;
+        this.nameFallback = nameFallback;
+        resolutions = new ConcurrentHashMap<>();
+        contextResolutions = new ConcurrentHashMap<>();
+        listResolutions = new ConcurrentHashMap<>();
+        lowerCaseContexts = new ConcurrentHashMap<>();
+        misses = new MissCache();
+        seenReloads = new HashMap<>();
+        generation = Theme.getGeneration();
+        collectChangedNames(new HashSet<String>());
+    }
+
+    /**
+     * Look up an icon from the themes in order.
+     *
+     * @param iconName name of the icon
+     * @param iconSize requested size
+     * @return the icon or null if none of the themes has it
+     */
+    public ImageIcon getIcon(String iconName, int iconSize)
+    {
+        Theme.Resolution resolution = resolve(iconName, iconSize);
+
+        if (resolution == null)
+            return null;
+
+        return resolution.getIcon(iconName, iconSize);
+    }
+
+    /**
+     * Look up an icon from the directories of one context only.
+     *
+     * @param iconName name of the icon
+     * @param iconSize requested size
+     * @param context name of the context, e.g. MimeTypes, case is ignored
+     * @return the icon or null if none of the themes has it in the context
+     */
+    public ImageIcon getIcon(String iconName, int iconSize, String context)
+    {
+        Theme.Resolution resolution = resolve(iconName, iconSize, context);
+
+        if (resolution == null)
+            return null;
+
+        return resolution.getIcon(iconName, iconSize);
+    }
+
+    /**
+     * Look up the first of several icons, in order of preference.
+     *
+     * Each theme is searched for every name before moving on to the next theme.
+     * Only the icon that wins is read from disk.
+     *
+     * @param iconNames names of the icons, most preferred first
+     * @param iconSize requested size
+     * @return the icon or null if none of the themes has any of them
+     */
+    public ImageIcon getIcon(String[] iconNames, int iconSize)
+    {
+        Theme.Resolution resolution = resolve(iconNames, iconSize);
+
+        if (resolution == null)
+            return null;
+
+        return resolution.getIcon(resolution.icon.name, iconSize);
+    }
+
+    /**
+     * Find the theme that wins the first of several icons.
+     *
+     * @param iconNames names of the icons, most preferred first
+     * @param iconSize requested size, used to choose which directories to scan first
+     * @return where the icon is found or null if none of the themes has any of them
+     */
+    public Theme.Resolution resolve(String[] iconNames, int iconSize)
+    {
+        int currentGeneration = checkGeneration();
+
+        // A single name gives the same answer either way, and is remembered on its own
+        if (iconNames.length == 1)
+            return resolve(iconNames[0], iconSize);
+
+        List<String> key = Arrays.asList(iconNames);
+        Theme.Resolution resolution = listResolutions.get(key);
+
+        if (resolution != null)
+            return resolution;
+
+        if (systemTheme != null)
+            resolution = systemTheme.resolve(iconNames, iconSize);
+        if (resolution == null && applicationTheme != null)
+            resolution = applicationTheme.resolve(iconNames, iconSize);
+
+        // Shorter names are only tried once none of the full names was found
+        for (int i = 0; resolution == null && nameFallback && i < iconNames.length; i++)
+            resolution = resolve(iconNames[i], iconSize);
+
+        if (resolution != null && Theme.getGeneration() == currentGeneration)
+            listResolutions.put(new ArrayList<>(key), resolution);
+
+        return resolution;
+    }
+
+    /**
+     * Find the theme that wins an icon.
+     *
+     * @param iconName name of the icon
+     * @param iconSize requested size, used to choose which directories to scan first
+     * @return where the icon is found or null if none of the themes has it
+     */
+    public Theme.Resolution resolve(String iconName, int iconSize)
+    {
+        return resolve(iconName, iconSize, null);
+    }
+
+    /**
+     * Find the theme that wins an icon in one context.
+     *
+     * @param iconName name of the icon
+     * @param iconSize requested size, used to choose which directories to scan first
+     * @param context name of the context, case is ignored, or null to search every directory
+     * @return where the icon is found or null if none of the themes has it
+     */
+    public Theme.Resolution resolve(String iconName, int iconSize, String context)
+    {
+        int currentGeneration = checkGeneration();
+
+        if (context != null)
+            context = toLowerCase(context);
+
+        ConcurrentHashMap<String, Theme.Resolution> memo = getResolutions(context);
+        Theme.Resolution resolution = memo.get(iconName);
+
+        if (resolution != null)
+            return resolution;
+
+        MissKey missKey = new MissKey(iconName, iconSize, context);
+        if (misses.contains(missKey))
+            return null;
+
+        if (systemTheme != null)
+            resolution = resolveFrom(systemTheme, iconName, iconSize, context);
+        if (resolution == null && applicationTheme != null)
+            resolution = resolveFrom(applicationTheme, iconName, iconSize, context);
+
+        // Every theme is searched for the full name before any of them for a shorter one,
+        // the shorter names are remembered on their own on the way
+        if (resolution == null && nameFallback)
+        {
+            int dash = iconName.lastIndexOf('-');
+
+            if (dash > 0)
+                resolution = resolve(iconName.substring(0, dash), iconSize, context);
+        }
+
+        // Don't remember results that a reload made obsolete while we were searching
+        if (Theme.getGeneration() != currentGeneration)
+            return resolution;
+
+        // Threads racing on the same name find the same theme, either result will do
+        if (resolution != null)
+            memo.put(iconName, resolution);
+        else
+            misses.add(missKey);
+
+        return resolution;
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private final Theme systemTheme;
+    private final Theme applicationTheme;
+    private final boolean nameFallback;
+    private static final int MAX_MISSES = 1024;
+
+    private final ConcurrentHashMap<String, Theme.Resolution> resolutions;
+    // Results of lookups restricted to a context, by the lower case context
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Theme.Resolution>> contextResolutions;
+    // Results of lookups of several names, by the list of names
+    private final ConcurrentHashMap<List<String>, Theme.Resolution> listResolutions;
+    // Lower case of each context, as spelled by the callers
+    private final ConcurrentHashMap<String, String> lowerCaseContexts;
+    private final MissCache misses;
+    // Generation of all themes the results were found in
+    private volatile int generation;
+    // Reload count of each of our themes the results were found in, also the lock of checking them
+    private final HashMap<Theme, Integer> seenReloads;
+
+    /**
+     * Forget the results for icons that reloads of our themes may have changed since the last check.
+     * Only when some theme has reloaded are our own themes walked to see which one it was.
+     *
+     * @return the generation the results of the current lookup belong to
+     */
+    private int checkGeneration()
+    {
+        int currentGeneration = Theme.getGeneration();
+
+        if (currentGeneration != generation)
+        {
+            synchronized (seenReloads)
+            {
+                HashSet<String> changedNames = new HashSet<>();
+
+                if (!collectChangedNames(changedNames))
+                {
+                    resolutions.clear();
+                    contextResolutions.clear();
+                    listResolutions.clear();
+                    misses.clear();
+                }
+                else if (!changedNames.isEmpty())
+                {
+                    forget(changedNames);
+                }
+
+                generation = currentGeneration;
+            }
+        }
+
+        return currentGeneration;
+    }
+
+    /**
+     * @return false if the changes of some theme are not known and everything must be forgotten
+     */
+    private boolean collectChangedNames(Set<String> changedNames)
+    {
+        boolean known = true;
+
+        if (systemTheme != null && !systemTheme.collectChangedNames(seenReloads, changedNames))
+            known = false;
+        if (applicationTheme != null && !applicationTheme.collectChangedNames(seenReloads, changedNames))
+            known = false;
+
+        return known;
+    }
+
+    /**
+     * Forget the results for the changed names, and for the names that fell back to them.
+     */
+    private void forget(Set<String> changedNames)
+    {
+        forget(resolutions, changedNames);
+        for (ConcurrentHashMap<String, Theme.Resolution> memo : contextResolutions.values())
+            forget(memo, changedNames);
+
+        Iterator<List<String>> lists = listResolutions.keySet().iterator();
+        while (lists.hasNext())
+        {
+            for (String iconName : lists.next())
+            {
+                if (isChanged(iconName, changedNames, nameFallback))
+                {
+                    lists.remove();
+                    break;
+                }
+            }
+        }
+
+        misses.forget(changedNames, nameFallback);
+    }
+
+    private void forget(ConcurrentHashMap<String, Theme.Resolution> memo, Set<String> changedNames)
+    {
+        Iterator<String> iconNames = memo.keySet().iterator();
+
+        while (iconNames.hasNext())
+        {
+            if (isChanged(iconNames.next(), changedNames, nameFallback))
+                iconNames.remove();
+        }
+    }
+
+    /**
+     * @return true if the name or, with name fallback, one of its more generic names has changed
+     */
+    private static boolean isChanged(String iconName, Set<String> changedNames, boolean nameFallback)
+    {
+        while (!changedNames.contains(iconName))
+        {
+            int dash = iconName.lastIndexOf('-');
+
+            if (!nameFallback || dash <= 0)
+                return false;
+
+            iconName = iconName.substring(0, dash);
+        }
+
+        return true;
+    }
+
+    /**
+     * Lower the case of a context, remembering the result so that repeated lookups do not allocate.
+     */
+    private String toLowerCase(String context)
+    {
+        String lowerCase = lowerCaseContexts.get(context);
+
+        if (lowerCase == null)
+        {
+            lowerCase = context.toLowerCase();
+            lowerCaseContexts.put(context, lowerCase);
+        }
+
+        return lowerCase;
+    }
+
+    private ConcurrentHashMap<String, Theme.Resolution> getResolutions(String context)
+    {
+        if (context == null)
+            return resolutions;
+
+        ConcurrentHashMap<String, Theme.Resolution> memo = contextResolutions.get(context);
+
+        if (memo == null)
+        {
+            memo = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, Theme.Resolution> existing = contextResolutions.putIfAbsent(context, memo);
+
+            if (existing != null)
+                memo = existing;
+        }
+
+        return memo;
+    }
+
+    private static Theme.Resolution resolveFrom(Theme theme, String iconName, int iconSize, String context)
+    {
+        return context == null ? theme.resolve(iconName, iconSize) : theme.resolve(iconName, iconSize, context);
+    }
+
+    private static class MissKey
+    {
+        public MissKey(String name, int size, String context)
+        {
+            this.name = name;
+            this.size = size;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof MissKey))
+                return false;
+
+            MissKey key = (MissKey) other;
+            return size == key.size && name.equals(key.name) &&
+                   (context == null ? key.context == null : context.equals(key.context));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * name.hashCode() + size) + (context == null ? 0 : context.hashCode());
+        }
+
+        private final String name;
+        private final int size;
+        // Lower case context the lookup was restricted to, null for the whole theme
+        private final String context;
+    }
+
+    /**
+     * Least recently used misses, at most MAX_MISSES of them.
+     */
+    private static class MissCache
+    {
+        public synchronized boolean contains(MissKey key)
+        {
+            // Lookups count as use, in access ordered mode
+            return misses.get(key) != null;
+        }
+
+        public synchronized void add(MissKey key)
+        {
+            misses.put(key, Boolean.TRUE);
+        }
+
+        public synchronized void clear()
+        {
+            misses.clear();
+        }
+
+        public synchronized void forget(Set<String> changedNames, boolean nameFallback)
+        {
+            Iterator<MissKey> keys = misses.keySet().iterator();
+
+            while (keys.hasNext())
+            {
+                if (isChanged(keys.next().name, changedNames, nameFallback))
+                    keys.remove();
+            }
+        }
+
+        private final LinkedHashMap<MissKey, Boolean> misses = new LinkedHashMap<MissKey, Boolean>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MissKey, Boolean> eldest)
+            {
+                return size() > MAX_MISSES;
+            }
+        };
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
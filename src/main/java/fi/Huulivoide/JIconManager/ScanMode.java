@@ -0,0 +1,46 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+/**
+ * ScanMode tells when JIconManager scans the directories of an icon theme.
+ *
+ * Themes that ship an up to date icon-theme.cache, or that have been indexed by
+ * an earlier run of the application, are loaded without scanning in every mode.
+ */
+public enum ScanMode
+{
+    /**
+     * Scan every directory of the theme when the theme is loaded.
+     */
+    EAGER,
+
+    /**
+     * Only read the directory list when the theme is loaded. Each directory is scanned
+     * the first time an icon lookup needs it, directories whose size is closest to the
+     * requested size first. Loading time then depends on the icons actually used,
+     * not on the size of the theme.
+     */
+    LAZY,
+
+    /**
+     * Scan every directory of the theme when the theme is loaded, like {@link #EAGER},
+     * but scan the directories in parallel. Helps most when the directories are not
+     * yet in the operating system's page cache.
+     */
+    PARALLEL
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Pool used for reading themes in parallel. The work waits mostly for I/O,
+ * so the pool has at least a few threads even on small machines.
+ *
+ * The pool is only created when it is first used.
+ */
+class ScanPool
+{
+    //    region Public    //
+    /////////////////////////
+
+    public static final ForkJoinPool POOL = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private ScanPool()
+    {
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * ScanProfile limits which directories of a theme JIconManager indexes.
+ *
+ * Applications that only ever ask for a few icon sizes, or icons from a few contexts,
+ * can skip the rest of the theme. Directories outside the profile are never listed,
+ * scanned or stored in the persistent index, which saves both startup time and memory.
+ * Icons found only in skipped directories are not available.
+ *
+ * <br><br>
+ *
+ * Every part of the profile that is left empty allows everything, so a new ScanProfile
+ * indexes the whole theme just like {@link #ALL}. For example a toolbar might use:
+ *
+ * <pre>
+ * new ScanProfile().allowSizes(16, 32).allowContexts("Actions", "Status")
+ * </pre>
+ *
+ * The profile must not be changed after it has been passed to JIconManager.
+ */
+public class ScanProfile
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * Profile that indexes every directory of a theme.
+     */
+    public static final ScanProfile ALL = new ScanProfile();
+
+    /**
+     * Allow directories that hold icons for any size between minSize and maxSize, inclusive.
+     *
+     * Scalable and threshold directories are allowed if the range of sizes they
+     * can be used for overlaps with the given range.
+     *
+     * @param minSize smallest icon size needed
+     * @param maxSize biggest icon size needed
+     * @return this profile
+     */
+    public ScanProfile allowSizes(int minSize, int maxSize)
+    {
+        checkModifiable();
+
+        if (minSize > maxSize)
+            throw new IllegalArgumentException("minSize " + minSize + " is bigger than maxSize " + maxSize);
+
+        sizeRanges.add(new int[] { minSize, maxSize });
+
+        return this;
+    }
+
+    /**
+     * Allow directories for the given scales, i.e. 2 for HiDPI directories.
+     *
+     * @param scales values of the directories' Scale-key
+     * @return this profile
+     */
+    public ScanProfile allowScales(int... scales)
+    {
+        checkModifiable();
+
+        for (int scale : scales)
+            this.scales.add(scale);
+
+        return this;
+    }
+
+    /**
+     * Allow directories of the given contexts, i.e. "Actions" or "Status".
+     *
+     * Contexts are compared ignoring case. Directories that do not specify
+     * a context are always allowed.
+     *
+     * @param contexts values of the directories' Context-key
+     * @return this profile
+     */
+    public ScanProfile allowContexts(String... contexts)
+    {
+        checkModifiable();
+
+        for (String context : contexts)
+            this.contexts.add(context.toLowerCase());
+
+        return this;
+    }
+
+    /**
+     * Read the real size of every icon from its PNG header while indexing.
+     *
+     * Many themes have icons whose size does not match the size of their directory.
+     * With probing the real sizes are used to choose the image to load, so that
+     * icons are not scaled needlessly. Only the first 24 bytes of each file are read
+     * and the sizes are stored in the persistent index, but GTK's icon-theme.cache
+     * cannot be used as it does not record them.
+     *
+     * @return this profile
+     */
+    public ScanProfile probeImageSizes()
+    {
+        checkModifiable();
+
+        probeImageSizes = true;
+
+        return this;
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //  region Protected   //
+    /////////////////////////
+
+    /**
+     * Check whether a theme directory should be indexed.
+     *
+     * @param directory the directory
+     * @return true if the directory is within the profile
+     */
+    boolean includes(ThemeDirectory directory)
+    {
+        if (!scales.isEmpty() && !scales.contains(directory.scale))
+            return false;
+
+        if (!contexts.isEmpty() && directory.context != null &&
+            !contexts.contains(directory.context.toLowerCase()))
+            return false;
+
+        if (sizeRanges.isEmpty())
+            return true;
+
+        int smallest = directory.size;
+        int biggest = directory.size;
+
+        if (directory.type == IndexThemeFile.TYPE_SCALABLE)
+        {
+            smallest = directory.minSize;
+            biggest = directory.maxSize;
+        }
+        else if (directory.type == IndexThemeFile.TYPE_THRESHOLD)
+        {
+            smallest = directory.size - directory.threshold;
+            biggest = directory.size + directory.threshold;
+        }
+
+        for (int[] range : sizeRanges)
+        {
+            if (smallest <= range[1] && biggest >= range[0])
+                return true;
+        }
+
+        return false;
+    }
+
+    boolean probesImageSizes()
+    {
+        return probeImageSizes;
+    }
+
+    /////////////////////////
+    // endregion Protected //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private void checkModifiable()
+    {
+        if (this == ALL)
+            throw new UnsupportedOperationException("ScanProfile.ALL cannot be modified");
+    }
+
+    private final ArrayList<int[]> sizeRanges = new ArrayList<>();
+    private final HashSet<Integer> scales = new HashSet<>();
+    private final HashSet<String> contexts = new HashSet<>();
+    private boolean probeImageSizes;
+
+    /////////////////////////
+    //  endregion Private  //
+}
@@ -17,8 +17,6 @@
 package fi.Huulivoide.JIconManager;
 
 import org.imgscalr.Scalr;
-import org.ini4j.Ini;
-import org.ini4j.Profile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,12 +26,31 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class Theme
 {
@@ -42,68 +59,128 @@ class Theme
 
     public Theme(Path themeFile, boolean isSystemTheme) throws MalformedIconThemeFileException
     {
+        this(themeFile, isSystemTheme, ScanMode.EAGER);
+    }
+
+    public Theme(Path themeFile, boolean isSystemTheme, ScanMode scanMode) throws MalformedIconThemeFileException
+    {
+        this(themeFile, isSystemTheme, scanMode, ScanProfile.ALL);
+    }
+
+    public Theme(Path themeFile, boolean isSystemTheme, ScanMode scanMode, ScanProfile scanProfile)
+            throws MalformedIconThemeFileException
+    {
+        this(themeFile, Collections.singletonList(themeFile.getParent()), isSystemTheme, scanMode, scanProfile);
+    }
+
+    /**
+     * Load a theme that spans several base directories.
+     *
+     * @param themeFile the index.theme file of the theme
+     * @param rootPaths every directory of the theme, in order of precedence
+     * @param isSystemTheme false for application themes
+     * @param scanMode when to scan the directories of the theme
+     * @param scanProfile directories of the theme that are indexed
+     * @throws MalformedIconThemeFileException in case index.theme has serious flaws
+     */
+    public Theme(Path themeFile, List<Path> rootPaths, boolean isSystemTheme, ScanMode scanMode,
+                 ScanProfile scanProfile) throws MalformedIconThemeFileException
+    {
+        this.scanMode = scanMode;
+        this.scanProfile = scanProfile;
+
         inheritedThemes = new ArrayList<>();
-        icons = new HashMap<>();
+        roots = new ArrayList<>();
+        directories = new ArrayList<>();
+        listings = new ArrayList<>();
+        pendingListings = new ArrayList<>();
+        unscannedContextDirectories = new ConcurrentHashMap<>();
+        reloadedNames = new ArrayList<>();
+        iconTable = new IconTable();
 
-        Path rootPath = themeFile.getParent();
-        name = rootPath.getFileName().toString();
+        for (Path rootPath : rootPaths)
+            roots.add(new ThemeRoot(rootPath));
+
+        name = themeFile.getParent().getFileName().toString();
 
         try
         {
-            Ini themeData = new Ini(Files.newBufferedReader(themeFile, Charset.forName("UTF-8")));
-
-            // Try to open the theme's info section
-            Ini.Section infoSection = themeData.get("Icon Theme");
-            if (infoSection == null)
-            {
-                // Try to see if it is available in all lowercase
-                infoSection = themeData.get("icon theme");
-
-                if (infoSection == null) // No :( exit
-                {
-                    throw new MalformedIconThemeFileException("Section [Icon Theme] missing from file: " +
-                                                                      themeFile.toString());
-                }
-                else
-                {
-                    log.warn("Malformed theme file '{}': section '[icon theme]' should be '[Icon Theme]'.",
-                             themeFile.toString());
-                }
-            }
+            IndexThemeFile themeData = IndexThemeFile.parse(themeFile);
 
 
             // All themes with the exception of Hicolor can inherit other themes.
             // Hicolor is inherited always, even if the theme doesn't specify it
             // Hicolor itself is naturally an exception.
             // Application theme inheritance is not supported
-            if (name.equals(HICOLOR_ICON_THEME_NAME) && isSystemTheme)
-               inheritThemes(infoSection, themeFile);
+            if (!name.equals(HICOLOR_ICON_THEME_NAME) && isSystemTheme)
+               inheritThemes(themeData.inherits, themeFile);
 
 
-            String foldersKey = themeData.get("Icon Theme", "Directories");
-            if (foldersKey == null || foldersKey.length() == 0)
+            if (themeData.directoryCount == 0)
             {
                 log.error("Malformed theme file '{}': " +
-                          "Section [Icon Theme] does not contain Directories-key or it is empty.");
+                          "Section [Icon Theme] does not contain Directories-key or it is empty.",
+                          themeFile.toString());
 
                 throw new MalformedIconThemeFileException("Section [Icon Theme] does not contain proper Directories-key: " +
                                                           themeFile.toString());
             }
 
-            // Scan each directory for icon files
-            for (String folder : foldersKey.split(","))
+            for (int entry = 0; entry < themeData.directoryCount; entry++)
+            {
+                String folder = themeData.directoryNames[entry];
+
+                // Every directory is looked up from all of the roots, in order of precedence
+                for (int root = 0; root < roots.size(); root++)
+                {
+                    ThemeDirectory directory = new ThemeDirectory(themeData, entry, roots.get(root).path.resolve(folder),
+                                                                  root);
+
+                    // Directories the application has no use for are never listed nor stored
+                    if (!scanProfile.includes(directory))
+                    {
+                        log.debug("Directory '{}' is not in the scan profile, skipping it.", folder);
+                        break;
+                    }
+
+                    directories.add(directory);
+                    listings.add(null);
+                    pendingListings.add(null);
+                }
+            }
+
+            unscannedDirectories = directories.size();
+            for (ThemeDirectory directory : directories)
             {
-                Integer size = 0;
+                if (directory.context != null)
+                {
+                    String context = directory.context.toLowerCase();
+                    Integer unscanned = unscannedContextDirectories.get(context);
+
+                    unscannedContextDirectories.put(context, unscanned == null ? 1 : unscanned + 1);
+                }
+            }
 
-                String type = themeData.get(folder, "Type");
+            // Prefer GTK's icon caches, they save us from listing every directory.
+            // They don't know the real sizes of the images though.
+            for (int root = 0; root < roots.size(); root++)
+            {
+                if (scanProfile.probesImageSizes() || !loadFromCache(root))
+                    roots.get(root).index = ThemeIndexCache.open(roots.get(root).path);
+            }
 
-                if (type.equals("fixed") || type.equals("Fixed"))
-                    size = Integer.parseInt(themeData.get(folder, "Size"));
-                else if (type.equals("scalable") || type.equals("Scalable"))
-                    size = ThemeIcon.SCALABLE;
+            // In lazy mode the directories are scanned by getLocalIcon as they are needed
+            if (scanMode == ScanMode.EAGER)
+            {
+                for (int i = 0; i < directories.size(); i++)
+                    loadDirectory(i);
 
-                // Iterate over to files in the directory
-                loadFromPath(rootPath.resolve(folder), size);
+                saveIndex();
+            }
+            else if (scanMode == ScanMode.PARALLEL)
+            {
+                loadDirectoriesInParallel();
+                saveIndex();
             }
         }
         catch (IOException e)
@@ -114,52 +191,253 @@ class Theme
         loadedThemes.add(this);
     }
 
-    public void loadFromPath(Path scanPath, Integer size)
+    public ImageIcon getIcon(String iconName, int iconSize)
+    {
+        return getIcon(iconName, iconSize, true);
+    }
+
+    /**
+     * Count the icon decodes avoided by waiting for another thread that was
+     * already loading the same icon, over all themes.
+     *
+     * @return number of lookups that shared another thread's decode
+     */
+    public static long getSavedDecodeCount()
+    {
+        return savedDecodes.get();
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //  region Protected   //
+    /////////////////////////
+
+    /**
+     * The theme that provides an icon, as found by searching a theme and the themes it inherits.
+     */
+    static class Resolution
     {
-        // Iterate over to files in the directory
-        try (DirectoryStream<Path> files = Files.newDirectoryStream(scanPath, "*.png"))
+        /**
+         * @param theme the theme the icon was found in
+         * @param icon the icon
+         * @param context lower case context the icon was looked up in, null for the whole theme
+         */
+        public Resolution(Theme theme, ThemeIcon icon, String context)
+        {
+            this.theme = theme;
+            this.icon = icon;
+            this.context = context;
+            table = theme.iconTable;
+        }
+
+        /**
+         * Load the icon in the given size from the theme that provides it.
+         *
+         * @param iconName requested name of the icon
+         * @param iconSize requested size
+         * @return the icon or null if it cannot be read
+         */
+        public ImageIcon getIcon(String iconName, int iconSize)
+        {
+            return theme.getLocalIcon(getCurrentIcon(), context, iconName, iconSize);
+        }
+
+        /**
+         * Tell which file the icon would be loaded from in the given size, without reading it.
+         *
+         * @param iconName requested name of the icon
+         * @param iconSize requested size
+         * @return source of the icon
+         */
+        public IconSource getSource(String iconName, int iconSize)
+        {
+            return theme.getLocalSource(getCurrentIcon(), context, iconName, iconSize);
+        }
+
+        public final Theme theme;
+        public final ThemeIcon icon;
+        public final String context;
+
+        // Index the icon was found in, replaced when the theme reloads directories
+        private final IconTable table;
+
+        /**
+         * @return the icon as currently indexed, found again if the theme has reloaded directories since
+         */
+        private ThemeIcon getCurrentIcon()
         {
-            for (Path iconFile : files)
+            if (theme.iconTable != table)
             {
-                String iconName = iconFile.getFileName().toString().split("\\.")[0];
+                ThemeIcon reindexed = theme.getIndexedIcon(icon.name, context);
+
+                if (reindexed != null)
+                    return getThemeIcon(reindexed, context);
+            }
+
+            return getThemeIcon(icon, context);
+        }
+    }
+
+    /**
+     * Find the theme that provides an icon, searching this theme first and then the themes
+     * it inherits, hicolor last. Inherited themes and lazily scanned directories are loaded
+     * as the search needs them.
+     *
+     * @param iconName name of the icon
+     * @param iconSize requested size, used to choose which directories to scan first
+     * @return where the icon is found or null if none of the themes has it
+     */
+    Resolution resolve(String iconName, int iconSize)
+    {
+        return resolve(iconName, iconSize, null, true, null);
+    }
+
+    /**
+     * Find the theme that provides an icon in the given context. Only directories whose
+     * Context-key matches are searched, and only those are loaded from lazily scanned themes.
+     *
+     * @param iconName name of the icon
+     * @param iconSize requested size, used to choose which directories to scan first
+     * @param context name of the context, e.g. MimeTypes, case is ignored
+     * @return where the icon is found or null if none of the themes has it in the context
+     */
+    Resolution resolve(String iconName, int iconSize, String context)
+    {
+        return resolve(iconName, iconSize, context.toLowerCase(), true, null);
+    }
+
+    /**
+     * List the icons of a context in this theme and the themes it inherits. Every directory
+     * of the context is loaded, directories of the other contexts are left alone.
+     *
+     * @param context name of the context, e.g. MimeTypes, case is ignored
+     * @return names of the icons found in the context
+     */
+    Set<String> listIcons(String context)
+    {
+        TreeSet<String> iconNames = new TreeSet<>();
+        listIcons(context.toLowerCase(), iconNames, true, null);
+
+        return iconNames;
+    }
+
+    /**
+     * Find the first of several icons, in order of preference. Every name is looked up
+     * from a theme before moving on to the next theme in the inheritance chain, so an icon
+     * of a less preferred name in this theme wins a preferred one in an inherited theme.
+     *
+     * @param iconNames names of the icons, most preferred first
+     * @param iconSize requested size, used to choose which directories to scan first
+     * @return where the first icon is found or null if none of the themes has any of them
+     */
+    Resolution resolve(String[] iconNames, int iconSize)
+    {
+        return resolve(iconNames, iconSize, true, null);
+    }
+
+    /**
+     * Rescan the directories that have been modified on disk since they were loaded,
+     * in this theme and in the inherited themes loaded so far.
+     *
+     * @return true if any directory had changed
+     */
+    boolean reloadChangedDirectories()
+    {
+        return reloadChangedDirectories(null);
+    }
+
+    /**
+     * Tells whether icons may have been added or removed from any theme. The number
+     * changes every time a theme reloads directories that were changed on disk, so that
+     * anything remembering lookup results knows to forget them.
+     *
+     * @return current generation of the loaded themes
+     */
+    static int getGeneration()
+    {
+        return generation.get();
+    }
+
+    /**
+     * Collect the names of the icons that reloads of this theme and of the inherited themes loaded
+     * so far may have added or removed since the caller last looked. Every name found in a reloaded
+     * directory, before or after the reload, counts as changed.
+     *
+     * @param seenReloads reload count of each theme as of the previous call, updated to the current ones
+     * @param changedNames set to add the changed names to
+     * @return false if the changes of a theme are not known anymore, it has reloaded too often since
+     */
+    boolean collectChangedNames(Map<Theme, Integer> seenReloads, Set<String> changedNames)
+    {
+        return collectChangedNames(seenReloads, changedNames, null);
+    }
+
+    /**
+     * List the PNG icons of a directory, probing their sizes if the scan profile asks for it.
+     *
+     * @param scanPath the directory
+     * @return listing of the directory, empty if it cannot be read
+     */
+    DirectoryListing scanDirectory(final Path scanPath)
+    {
+        // Take the time before listing, a change made during the scan then invalidates it
+        final boolean probe = scanProfile.probesImageSizes();
+        final DirectoryListing listing = new DirectoryListing(ThemeIndexCache.lastModified(scanPath), probe);
 
-                // Assign symlinks as aliases for the real file
-                if (Files.isSymbolicLink(iconFile))
+        try
+        {
+            // The visitor gets each file's attributes along with it, so telling links apart needs no extra
+            // system call. The walk is not allocation free though: NIO creates a Path, an attributes object
+            // and a file name String for every entry, and on Linux lstat()s each one, as it has no way to
+            // list a directory with only the d_type of its entries. A few hundred bytes per file is as low
+            // as scanning through NIO gets.
+            Files.walkFileTree(scanPath, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
                 {
-                    Path target = Files.readSymbolicLink(iconFile);
-                    ThemeIcon icon = icons.get(target.getFileName().toString().split("\\.")[0]);
+                    String fileName = file.getFileName().toString();
 
-                    // We need to load the target icon first
-                    if (icon == null)
-                        icon = loadIcon(target, size);
+                    if (!fileName.endsWith(DirectoryListing.PNG_EXTENSION))
+                        return FileVisitResult.CONTINUE;
 
-                    icons.put(iconName, icon);
+                    // A link is an icon of its own name, whatever its target is called or wherever
+                    // it is. Broken links would hide the icon in the directories that come after.
+                    if (attributes.isRegularFile() || (attributes.isSymbolicLink() && Files.isRegularFile(file)))
+                        listing.add(DirectoryListing.getIconName(fileName), probe ? readImageSize(file) : 0);
+
+                    return FileVisitResult.CONTINUE;
                 }
-                else
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException
                 {
-                    loadIcon(iconFile, size);
+                    // Failing to open the directory itself fails the scan, a single bad file does not
+                    if (file.equals(scanPath))
+                        throw e;
+
+                    log.warn("Could not read icon file '{}': {}", file.toString(), e.getMessage());
+                    return FileVisitResult.CONTINUE;
                 }
-            }
+            });
+        }
+        catch (NoSuchFileException e)
+        {
+            // Themes spanning several roots rarely have every directory in each of them
+            log.debug("Directory {} does not exist.", scanPath.toString());
+            return new DirectoryListing(0, probe);
         }
         catch (IOException e)
         {
-            log.error("Failed to open DirectoryStream for folder {}", scanPath.toString());
+            log.error("Failed to scan folder {}", scanPath.toString());
+            return new DirectoryListing(0, probe);
         }
-    }
 
-    public ImageIcon getIcon(String iconName, Integer iconSize)
-    {
-        return getIcon(iconName, iconSize, true);
+        return listing;
     }
 
-    /////////////////////////
-    //  endregion Public   //
-
-
-    //  region Protected   //
-    /////////////////////////
-
-
     /////////////////////////
     // endregion Protected //
 
@@ -168,91 +446,403 @@ class Theme
     /////////////////////////
 
     private static final String HICOLOR_ICON_THEME_NAME = "hicolor";
-    private static ArrayList<Theme> loadedThemes = new ArrayList<>();
+
+    // PNG signature, IHDR chunk's length and type, width and height
+    private static final int PNG_HEADER_SIZE = 24;
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int PNG_IHDR = 0x49484452;
+    private static final CopyOnWriteArrayList<Theme> loadedThemes = new CopyOnWriteArrayList<>();
+    private static final AtomicLong savedDecodes = new AtomicLong();
+    private static final AtomicInteger generation = new AtomicInteger();
     private static final Logger log = LoggerFactory.getLogger(Theme.class);
 
-    private class ThemeIcon
+    // Directories scanned by lookups before the persistent index is written again
+    private static final int INDEX_SAVE_BATCH = 16;
+    // Reloads whose changed icon names are remembered. A lookup table that fell further behind
+    // forgets all of its results.
+    private static final int RELOAD_HISTORY = 16;
+
+    static
     {
-        public ThemeIcon()
+        // Lazily scanned directories are written in batches, whatever is left when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
         {
-            sizes = new HashMap<>();
-            cachedIcons = new HashMap<>();
+            @Override
+            public void run()
+            {
+                for (Theme theme : loadedThemes)
+                {
+                    synchronized (theme)
+                    {
+                        theme.saveIndex();
+                    }
+                }
+            }
+        }, "JIconManager index writer"));
+    }
+
+    /**
+     * Fetch the listing of one directory, from the icon caches if possible.
+     * Only reads the theme's state, so any number of these can run at the same time.
+     */
+    private class ScanTask extends RecursiveTask<DirectoryListing>
+    {
+        public ScanTask(int directoryIndex)
+        {
+            this.directoryIndex = directoryIndex;
         }
 
-        public HashMap<Integer, Path> sizes;
-        public HashMap<Integer, ImageIcon> cachedIcons;
+        @Override
+        protected DirectoryListing compute()
+        {
+            DirectoryListing listing = getIndexedListing(directoryIndex);
 
-        public static final int SCALABLE = -1;
-    }
+            if (listing == null)
+            {
+                listing = scanDirectory(directories.get(directoryIndex).path);
+                scanned = true;
+            }
 
-    private HashMap<String, ThemeIcon> icons;
+            return listing;
+        }
 
-    private String name;
+        public boolean scanned;
 
-    private FileSystem themeRootFs;
-    private ArrayList<Theme> inheritedThemes;
+        private static final long serialVersionUID = 1L;
+        private final int directoryIndex;
+    }
 
-    private static boolean themeIsLoaded(String themeName)
+    /**
+     * Handle to an inherited theme, loaded the first time a lookup needs it.
+     */
+    private class InheritedTheme
     {
-        for (Theme theme : loadedThemes)
+        public InheritedTheme(String name)
         {
-            if (theme.name.equals(themeName))
-                return true;
+            this.name = name;
         }
 
-        return false;
+        /**
+         * @return the theme, or null if it is not installed or cannot be loaded
+         */
+        public Theme get()
+        {
+            if (resolved)
+                return theme;
+
+            // Serialized over all themes, so that two handles never load the same theme twice
+            synchronized (loadedThemes)
+            {
+                if (resolved)
+                    return theme;
+
+                Theme found = getLoadedTheme(name, scanProfile);
+
+                if (found == null)
+                {
+                    try
+                    {
+                        Path themePath = ThemeRegistry.getThemeFile(name);
+                        if (themePath != null)
+                            found = new Theme(themePath, ThemeRegistry.getThemeRoots(name), true, scanMode,
+                                              scanProfile);
+                        else
+                            log.info("Theme '{}' inherits theme '{}', which is not installed.", Theme.this.name, name);
+                    }
+                    catch (MalformedIconThemeFileException e)
+                    {
+                        log.error("Theme '{}' failed to inherit malformed theme '{}': {}",
+                                  Theme.this.name, name, e.getMessage());
+                    }
+                }
+
+                // Failures are remembered too, the theme is not looked for again.
+                // The theme is written before the volatile flag that publishes it.
+                theme = found;
+                resolved = true;
+
+                return found;
+            }
+        }
+
+        /**
+         * @return the theme if it has already been loaded, else null
+         */
+        public Theme getIfLoaded()
+        {
+            return resolved ? theme : null;
+        }
+
+        public final String name;
+
+        private Theme theme;
+        private volatile boolean resolved;
     }
 
-    private static Theme getLoadedTheme(String themeName)
+    /**
+     * One of the base directories a theme is installed in.
+     */
+    private static class ThemeRoot
     {
-        for (Theme theme : loadedThemes)
+        public ThemeRoot(Path path)
         {
-            if (theme.name.equals(themeName))
-                return theme;
+            this.path = path;
         }
 
-        return null;
+        public final Path path;
+
+        // Our persistent index for the root, null if GTK's cache is used
+        public ThemeIndexCache index;
+        public boolean indexChanged;
     }
 
-    private static String extractThemeName(Profile.Section infoSection, Path themeFile)
+    /**
+     * An icon of the index. While every source of an icon is in directories of one context,
+     * the whole theme and the context's partition share the same ThemeIcon, and so its
+     * decoded icons. Once the icon is found outside the context, the whole theme indexes
+     * a copy instead, which the shared icon then points to as its successor.
+     */
+    static class ThemeIcon
     {
-        String name = infoSection.get("Name");
-        if (name == null)
+        /**
+         * @param name name of the icon files
+         */
+        public ThemeIcon(String name)
+        {
+            this.name = name;
+            directories = new int[2];
+        }
+
+        /**
+         * Copy the sources of another icon, but not its decoded icons, as the best
+         * source for a size may change once the copy gains more sources.
+         *
+         * @param icon the icon to copy
+         */
+        public ThemeIcon(ThemeIcon icon)
+        {
+            name = icon.name;
+            directories = Arrays.copyOf(icon.directories, icon.directories.length);
+            if (icon.imageSizes != null)
+                imageSizes = Arrays.copyOf(icon.imageSizes, icon.imageSizes.length);
+            count = icon.count;
+        }
+
+        /**
+         * Record another directory the icon is found in. Only called by one thread at a time,
+         * readers see the new source once the count has been updated.
+         *
+         * @param directoryIndex index of the directory
+         * @param imageSize real size of the image in pixels or 0 if unknown
+         */
+        public void add(int directoryIndex, int imageSize)
         {
-            name = infoSection.get("name");
+            int n = count;
 
-            if (name == null)
+            if (n == directories.length)
             {
-                log.warn("Malformed theme file '{}': section [Icon Theme] does not contain key 'Name'. " +
-                                 "Substituting with path name.", themeFile.toString());
+                directories = Arrays.copyOf(directories, n * 2);
 
-                name = themeFile.getParent().getFileName().toString();
+                if (imageSizes != null)
+                    imageSizes = Arrays.copyOf(imageSizes, n * 2);
             }
-            else
+
+            // Image sizes are only known when probing, so most icons never need the array
+            if (imageSize != 0 && imageSizes == null)
+                imageSizes = new int[directories.length];
+
+            directories[n] = directoryIndex;
+            if (imageSizes != null)
+                imageSizes[n] = imageSize;
+            count = n + 1;
+        }
+
+        /**
+         * @param source index of the source, less than count
+         * @return real size of the image in pixels or 0 if unknown
+         */
+        public int getImageSize(int source)
+        {
+            int[] sizes = imageSizes;
+
+            return sizes == null ? 0 : sizes[source];
+        }
+
+        /**
+         * Find the decoded icon of a size without locking or allocating.
+         *
+         * @param iconSize size of the icon
+         * @return the icon, possibly still being decoded, or null if it has not been requested
+         */
+        public Future<ImageIcon> getCachedIcon(int iconSize)
+        {
+            CachedIcon[] cached = cachedIcons;
+
+            if (cached != null)
+            {
+                for (CachedIcon icon : cached)
+                {
+                    if (icon.size == iconSize)
+                        return icon.icon;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Remember a decoded icon unless another thread got there first.
+         *
+         * @param iconSize size of the icon
+         * @param icon the icon, possibly still being decoded
+         * @return the icon remembered earlier or null if the given one was stored
+         */
+        public synchronized Future<ImageIcon> putCachedIcon(int iconSize, Future<ImageIcon> icon)
+        {
+            Future<ImageIcon> existing = getCachedIcon(iconSize);
+            if (existing != null)
+                return existing;
+
+            CachedIcon[] cached = cachedIcons;
+            CachedIcon[] grown = cached == null ? new CachedIcon[1] : Arrays.copyOf(cached, cached.length + 1);
+
+            grown[grown.length - 1] = new CachedIcon(iconSize, icon);
+            cachedIcons = grown;
+
+            return null;
+        }
+
+        /**
+         * Forget a decoded icon, if it is still the one remembered for its size.
+         *
+         * @param iconSize size of the icon
+         * @param icon the icon to forget
+         */
+        public synchronized void removeCachedIcon(int iconSize, Future<ImageIcon> icon)
+        {
+            CachedIcon[] cached = cachedIcons;
+            if (cached == null)
+                return;
+
+            for (int i = 0; i < cached.length; i++)
             {
-                log.warn("Malformed theme file '{}': [Icon Theme] section's key 'name' should be 'Name'.",
-                         themeFile.toString());
+                if (cached[i].size != iconSize || cached[i].icon != icon)
+                    continue;
+
+                CachedIcon[] shrunk = null;
+                if (cached.length > 1)
+                {
+                    shrunk = new CachedIcon[cached.length - 1];
+                    System.arraycopy(cached, 0, shrunk, 0, i);
+                    System.arraycopy(cached, i + 1, shrunk, i, cached.length - i - 1);
+                }
+
+                cachedIcons = shrunk;
+                return;
             }
         }
 
-        return name;
+        // Name of the icon files, links are icons of their own name
+        public final String name;
+        // Directories the icon is found in, in the order they were loaded
+        public int[] directories;
+        public volatile int count;
+        // Icon that replaced this one in the index of the whole theme, null if not replaced
+        public volatile ThemeIcon successor;
+
+        // Real size of the image in each of the directories, null if none were probed
+        private int[] imageSizes;
+        // Decoded icons, replaced as a whole when a size is added. Icons are asked in a few
+        // sizes at most, so a scan beats hashing and needs no boxing. Null until first decode.
+        private volatile CachedIcon[] cachedIcons;
+    }
+
+    /**
+     * A decoded icon of one size, the future is shared by every thread asking for the same size.
+     */
+    private static class CachedIcon
+    {
+        public CachedIcon(int size, Future<ImageIcon> icon)
+        {
+            this.size = size;
+            this.icon = icon;
+        }
+
+        public final int size;
+        public final Future<ImageIcon> icon;
     }
 
-    private void inheritThemes(Profile.Section infoSection, Path themeFile)
+    /**
+     * The icon index of a theme. Every icon is indexed once for the whole theme and once more
+     * under the context of its directories, so that lookups restricted to a context never
+     * see icons of the other contexts. Icons found in one context only are the same
+     * ThemeIcon in both.
+     */
+    private static class IconTable
     {
-        // See if we can find a list of themes to be inherited
-        String inheritsKey = infoSection.get("Inherits");
-        if (inheritsKey == null)
+        public IconTable()
+        {
+            icons = new ConcurrentHashMap<>();
+            contexts = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * @param context lower case name of a context or null for the whole theme
+         * @return icons of the context, null if none of the loaded directories has the context
+         */
+        public ConcurrentHashMap<String, ThemeIcon> getIcons(String context)
         {
-            // Try lowercase instead
-            inheritsKey = infoSection.get("inherits");
+            return context == null ? icons : contexts.get(context);
+        }
+
+        public final ConcurrentHashMap<String, ThemeIcon> icons;
+        // Partitions by the lower case Context-key of the directories
+        public final ConcurrentHashMap<String, ConcurrentHashMap<String, ThemeIcon>> contexts;
+    }
+
+    // Lookups read the icons without locking. Everything is written either in the constructor
+    // or, for lazily loaded directories, while holding the theme's lock.
+    // Replaced as a whole when directories changed on disk are reloaded
+    private volatile IconTable iconTable;
+    private final ArrayList<ThemeRoot> roots;
+    private final ArrayList<ThemeDirectory> directories;
+
+    // Listing of each directory, null until the directory has been loaded
+    private final ArrayList<DirectoryListing> listings;
+    // Listings read from GTK's icon caches, waiting to be loaded
+    private final ArrayList<DirectoryListing> pendingListings;
+    private volatile int unscannedDirectories;
+    // The same by lower case context, so that lookups in a context that has been loaded
+    // completely never take the lock, whatever is left of the other contexts
+    private final ConcurrentHashMap<String, Integer> unscannedContextDirectories;
+    // Directories scanned since the persistent index was last written, only used while holding the lock
+    private int unsavedDirectories;
+    // Times directories changed on disk have been reloaded, only written while holding reloadedNames
+    private volatile int reloads;
+    // Names of the icons in the directories of each of the latest reloads, oldest first
+    private final ArrayList<Set<String>> reloadedNames;
+
+    private final String name;
+    private final ScanMode scanMode;
+    private final ScanProfile scanProfile;
 
-            // Warn about malformed theme file
-            if (inheritsKey != null)
-                log.warn("Malformed theme file '{}': Section '[inherits]' should be '[Inherits]'.",
-                         themeFile.toString());
+    private FileSystem themeRootFs;
+    private final ArrayList<InheritedTheme> inheritedThemes;
+
+    // Themes loaded with another profile may lack directories this one needs
+    private static Theme getLoadedTheme(String themeName, ScanProfile scanProfile)
+    {
+        for (Theme theme : loadedThemes)
+        {
+            if (theme.name.equals(themeName) && theme.scanProfile == scanProfile)
+                return theme;
         }
 
+        return null;
+    }
+
+    private void inheritThemes(String inheritsKey, Path themeFile)
+    {
         ArrayList<String> toBeInherited = new ArrayList<>();
         // Don't cause nullPointerException
         if (inheritsKey != null)
@@ -273,138 +863,938 @@ class Theme
 
         for (String inheritedTheme : toBeInherited)
         {
+            inheritedTheme = inheritedTheme.trim();
+
+            // A theme inheriting itself is left out here, longer loops are cut while searching, see visit()
+            if (inheritedTheme.length() == 0 || inheritedTheme.equals(name))
+                continue;
 
             log.info("Theme '{}' inherits theme '{}'.",
                      themeFile.getParent().getFileName().toString(), inheritedTheme);
 
-            // If theme is not already loaded, then procede to load it
-            if (themeIsLoaded(inheritedTheme))
-            {
-                inheritedThemes.add(getLoadedTheme(inheritedTheme));
-            }
-            else
-            {
-                try
-                {
-                    Path themePath = JIconManager.getSystemTheme(inheritedTheme);
-                    if (themePath != null)
-                        inheritedThemes.add(new Theme(themePath, true));
-                }
-                catch (MalformedIconThemeFileException e)
-                {
-                    log.error("Theme '{}' failed to inherit malformed theme '{}': {}",
-                              name, inheritedTheme, e.getMessage());
-                }
-            }
+            // The theme itself is only loaded once a lookup falls through to it
+            inheritedThemes.add(new InheritedTheme(inheritedTheme));
         }
     }
 
-    private ThemeIcon loadIcon(Path iconFile, Integer size)
+    /**
+     * Read the listings of a root's directories from its icon-theme.cache file.
+     *
+     * @param root index of the theme root
+     * @return true if the cache was used, false if the directories must be scanned instead
+     */
+    private boolean loadFromCache(int root)
     {
-        ThemeIcon icon = null;
+        ArrayList<Integer> directoryIndexes = new ArrayList<>();
+        ArrayList<ThemeDirectory> rootDirectories = new ArrayList<>();
 
-        String iconName = iconFile.getFileName().toString().split("\\.")[0];
-
-        if (icons.containsKey(iconName) == false)
+        for (int i = 0; i < directories.size(); i++)
         {
-            icon = new ThemeIcon();
-            icons.put(iconName, icon);
+            if (directories.get(i).root == root)
+            {
+                directoryIndexes.add(i);
+                rootDirectories.add(directories.get(i));
+            }
         }
-        else
+
+        IconThemeCache cache = IconThemeCache.open(roots.get(root).path, rootDirectories);
+        if (cache == null)
+            return false;
+
+        List<DirectoryListing> cachedListings = cache.listDirectories(rootDirectories);
+        if (cachedListings == null)
+            return false;
+
+        log.info("Loading theme '{}' from icon cache in '{}'.", name, roots.get(root).path.toString());
+
+        for (int i = 0; i < directoryIndexes.size(); i++)
+            pendingListings.set(directoryIndexes.get(i), cachedListings.get(i));
+
+        return true;
+    }
+
+    /**
+     * Add the icons of a directory to the icon index.
+     *
+     * The listing is taken from GTK's icon cache or our persistent index if the directory
+     * has not changed since they were written, otherwise the directory is scanned.
+     *
+     * @param directoryIndex index of the directory in the directories list
+     */
+    private void loadDirectory(int directoryIndex)
+    {
+        ThemeDirectory directory = directories.get(directoryIndex);
+        DirectoryListing listing = getIndexedListing(directoryIndex);
+
+        if (listing == null)
         {
-            icon = icons.get(iconName);
+            listing = scanDirectory(directory.path);
+            roots.get(directory.root).indexChanged = true;
+            unsavedDirectories++;
         }
 
-        icon.sizes.put(size, iconFile);
-        log.debug("Icon {} of size {} was added to an IconList", iconName, size);
-
-        return icon;
+        addListing(directoryIndex, listing);
     }
 
-    private ImageIcon getLocalIcon(String iconName, Integer iconSize)
+    /**
+     * Scan all directories on a fork-join pool, then add them to the icon index one by one
+     * in the order of the directories list, so that precedence is resolved exactly as
+     * with a sequential scan.
+     */
+    private void loadDirectoriesInParallel()
     {
-        int biggest = ThemeIcon.SCALABLE;
-        Path iconFile = null;
-        ImageIcon icon = null;
+        final ArrayList<ScanTask> tasks = new ArrayList<>(directories.size());
+        for (int i = 0; i < directories.size(); i++)
+            tasks.add(new ScanTask(i));
 
-        ThemeIcon tIcon = icons.get(iconName);
-        if (tIcon != null)
+        ScanPool.POOL.invoke(new RecursiveAction()
         {
-            // See if the icon has been loaded before, if so return it.
-            if (tIcon.cachedIcons.containsKey(iconSize))
+            @Override
+            protected void compute()
             {
-                log.info("Loading cached icon '{}' of size {} from theme '{}'.", iconName, iconSize, name);
-                return tIcon.cachedIcons.get(iconSize);
+                invokeAll(tasks);
             }
+        });
 
-            Set<Integer> sizes = icons.get(iconName).sizes.keySet();
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            ScanTask task = tasks.get(i);
 
-            if (sizes.contains(iconSize))
-            {
-                iconFile = tIcon.sizes.get(iconSize);
-            }
-            else // try to resize the biggest icon
-            {
-                for (int size : sizes)
-                {
-                    if (size > biggest)
-                        biggest = size;
-                }
+            if (task.scanned)
+                roots.get(directories.get(i).root).indexChanged = true;
 
-                iconFile = tIcon.sizes.get(biggest);
-            }
+            addListing(i, task.join());
         }
+    }
 
-        if (iconFile != null)
-        {
-            try
-            {
-                BufferedImage iconImg = ImageIO.read(Files.newInputStream(iconFile, StandardOpenOption.READ));
+    private DirectoryListing getIndexedListing(int directoryIndex)
+    {
+        DirectoryListing listing = pendingListings.get(directoryIndex);
+        ThemeDirectory directory = directories.get(directoryIndex);
+        ThemeIndexCache index = roots.get(directory.root).index;
 
-                if (biggest != ThemeIcon.SCALABLE)
-                {
-                    log.info("Theme '{}' does not have icon '{}' in size {}, resizing from {}",
-                             name, iconName, iconSize, biggest);
-                    icon = new ImageIcon(Scalr.resize(iconImg, iconSize));
-                }
-                else  // TODO Implement SVG-rasterization
-                {
-                    log.info("Loading requested icon '{}' of size {} from theme '{}'.",
-                             iconName, iconSize, name);
-                    icon = new ImageIcon(iconImg);
-                }
-            }
-            catch (IOException e)
-            {
-                log.error("Could not load icon from file '{}'.", iconFile.toString());
-            }
-        }
+        if (listing == null && index != null)
+            listing = index.getListing(directory);
 
-        // Cache for later use
-        if (icon != null)
-            tIcon.cachedIcons.put(iconSize, icon);
+        // Listings indexed without probing are rescanned once probing is wanted
+        if (listing != null && scanProfile.probesImageSizes() && !listing.probed)
+            return null;
 
-        return icon;
+        return listing;
     }
 
-    private ImageIcon getIcon(String iconName, Integer iconSize, boolean queryHicolor)
+    private void addListing(int directoryIndex, DirectoryListing listing)
     {
-        ImageIcon icon = getLocalIcon(iconName, iconSize);
+        loadFromListing(directoryIndex, listing, iconTable);
+
+        listings.set(directoryIndex, listing);
+        pendingListings.set(directoryIndex, null);
+        // Lookups that see every directory as loaded skip the lock, so the icons must be indexed first
+        unscannedDirectories--;
 
-        for (Theme fallback : inheritedThemes)
+        String context = directories.get(directoryIndex).context;
+        if (context != null)
         {
-            if (icon != null)
+            context = context.toLowerCase();
+            unscannedContextDirectories.put(context, unscannedContextDirectories.get(context) - 1);
+        }
+    }
+
+    /**
+     * @param context lower case context, null for the whole theme
+     * @return number of directories of the context that have not been loaded yet
+     */
+    private int getUnscannedDirectories(String context)
+    {
+        if (context == null)
+            return unscannedDirectories;
+
+        // Looked up without allocating, the counts only change while loading
+        Integer unscanned = unscannedContextDirectories.get(context);
+
+        return unscanned == null ? 0 : unscanned;
+    }
+
+    /**
+     * Rescan the loaded directories of this theme whose modification time has changed,
+     * then rebuild the icon index from scratch, so that removed icons disappear too.
+     *
+     * @return true if any directory had changed
+     */
+    private synchronized boolean reloadChangedLocalDirectories()
+    {
+        boolean changed = false;
+        HashSet<String> changedNames = new HashSet<>();
+
+        for (int i = 0; i < directories.size(); i++)
+        {
+            ThemeDirectory directory = directories.get(i);
+            DirectoryListing listing = listings.get(i);
+
+            if (listing == null || listing.modified == ThemeIndexCache.lastModified(directory.path))
+                continue;
+
+            log.info("Directory '{}' has changed, rescanning it.", directory.path.toString());
+
+            DirectoryListing rescanned = scanDirectory(directory.path);
+            addIconNames(listing, changedNames);
+            addIconNames(rescanned, changedNames);
+
+            listings.set(i, rescanned);
+            roots.get(directory.root).indexChanged = true;
+            changed = true;
+        }
+
+        if (!changed)
+            return false;
+
+        // Lookups keep using the old index until the new one is complete
+        IconTable rebuilt = new IconTable();
+        for (int i = 0; i < directories.size(); i++)
+        {
+            if (listings.get(i) != null)
+                loadFromListing(i, listings.get(i), rebuilt);
+        }
+
+        iconTable = rebuilt;
+        // Counted before the generation, whoever sees the new generation sees the reload too
+        synchronized (reloadedNames)
+        {
+            reloadedNames.add(changedNames);
+            if (reloadedNames.size() > RELOAD_HISTORY)
+                reloadedNames.remove(0);
+
+            reloads++;
+        }
+        generation.incrementAndGet();
+        saveIndex();
+
+        return true;
+    }
+
+    private static void addIconNames(DirectoryListing listing, Set<String> iconNames)
+    {
+        for (int i = 0; i < listing.size(); i++)
+            iconNames.add(listing.getIconName(i));
+    }
+
+    /**
+     * Load the directories whose nominal size is closest to the requested size, until
+     * a source matching that size is found or every directory has been loaded.
+     *
+     * @param iconName name of the requested icon
+     * @param iconSize size of the requested icon
+     * @param context lower case context to load the directories of, null for every directory
+     */
+    private synchronized void loadDirectoriesFor(String iconName, final int iconSize, String context)
+    {
+        // Another thread may have loaded the icon while we waited for the lock
+        ThemeIcon loaded = getIndexedIcon(iconName, context);
+        if (getUnscannedDirectories(context) == 0 || (loaded != null && hasMatch(loaded, iconSize)))
+            return;
+
+        ArrayList<Integer> unscanned = new ArrayList<>(getUnscannedDirectories(context));
+        for (int i = 0; i < directories.size(); i++)
+        {
+            if (listings.get(i) == null && isInContext(directories.get(i), context))
+                unscanned.add(i);
+        }
+
+        // Stable sort, directories of the same size keep their relative order and precedence
+        Collections.sort(unscanned, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                return Integer.compare(getSizeDistance(directories.get(a), iconSize),
+                                       getSizeDistance(directories.get(b), iconSize));
+            }
+        });
+
+        int i = 0;
+        while (i < unscanned.size())
+        {
+            // Load every directory of the same distance before checking for a hit
+            int distance = getSizeDistance(directories.get(unscanned.get(i)), iconSize);
+            while (i < unscanned.size() && getSizeDistance(directories.get(unscanned.get(i)), iconSize) == distance)
+                loadDirectory(unscanned.get(i++));
+
+            ThemeIcon icon = getIndexedIcon(iconName, context);
+            if (icon != null && hasMatch(icon, iconSize))
                 break;
+        }
+
+        saveIndexIfDue();
+    }
+
+    /**
+     * Load every directory of a context that has not been loaded yet.
+     *
+     * @param context lower case name of the context
+     */
+    private synchronized void loadDirectoriesOf(String context)
+    {
+        if (getUnscannedDirectories(context) == 0)
+            return;
+
+        for (int i = 0; i < directories.size(); i++)
+        {
+            if (listings.get(i) == null && isInContext(directories.get(i), context))
+                loadDirectory(i);
+        }
+
+        saveIndexIfDue();
+    }
+
+    private static boolean isInContext(ThemeDirectory directory, String context)
+    {
+        return context == null || (directory.context != null && directory.context.equalsIgnoreCase(context));
+    }
+
+    private ThemeIcon getIndexedIcon(String iconName, String context)
+    {
+        ConcurrentHashMap<String, ThemeIcon> icons = iconTable.getIcons(context);
+
+        return icons == null ? null : icons.get(iconName);
+    }
+
+    private static int getSizeDistance(ThemeDirectory directory, int iconSize)
+    {
+        // Scalable directories only contain PNG files by accident, look into them last
+        if (directory.type == IndexThemeFile.TYPE_SCALABLE)
+            return Integer.MAX_VALUE;
+
+        return directory.getSizeDistance(iconSize);
+    }
+
+    /**
+     * Check whether one of the icon's sources can be used in the given size without scaling.
+     * A probed image is matched by its real size, otherwise by its directory.
+     */
+    private boolean hasMatch(ThemeIcon icon, int iconSize)
+    {
+        int count = icon.count;
+
+        for (int i = 0; i < count; i++)
+        {
+            if (matchesSize(icon, i, iconSize))
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean matchesSize(ThemeIcon icon, int source, int iconSize)
+    {
+        int imageSize = icon.getImageSize(source);
+
+        if (imageSize > 0)
+            return imageSize == iconSize;
+
+        return directories.get(icon.directories[source]).matchesSize(iconSize);
+    }
+
+    /**
+     * Choose the source to load an icon from, following LookupIcon of the specification:
+     * a source matching the size if there is one, else the one closest to it. Among equally
+     * good sources the smallest image at least as big as the requested size is chosen, so that
+     * as little as possible has to be decoded and scaled, and then the directory that comes
+     * first in the theme.
+     *
+     * @return index of the source in the icon's directories
+     */
+    private int chooseSource(ThemeIcon icon, int iconSize)
+    {
+        int count = icon.count;
+        int best = -1;
+        boolean bestMatches = false;
+        int bestDistance = Integer.MAX_VALUE;
+        int bestSize = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            ThemeDirectory directory = directories.get(icon.directories[i]);
+            int imageSize = icon.getImageSize(i);
+
+            boolean matches = matchesSize(icon, i, iconSize);
+            int distance = imageSize > 0 ? Math.abs(imageSize - iconSize) : directory.getSizeDistance(iconSize);
+            int size = imageSize > 0 ? imageSize : directory.size * directory.scale;
+
+            boolean better;
+            if (best == -1 || matches != bestMatches)
+                better = best == -1 || matches;
+            else if (!matches && distance != bestDistance)
+                better = distance < bestDistance;
+            else if (size != bestSize)
+                better = isCheaperSource(size, bestSize, iconSize);
+            else
+                better = icon.directories[i] < icon.directories[best];
+
+            if (better)
+            {
+                best = i;
+                bestMatches = matches;
+                bestDistance = distance;
+                bestSize = size;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Images at least the requested size are preferred, the smaller the better, as scaling
+     * down looks better than scaling up. Of smaller images the biggest is the best.
+     */
+    private static boolean isCheaperSource(int size, int otherSize, int iconSize)
+    {
+        if ((size >= iconSize) != (otherSize >= iconSize))
+            return size >= iconSize;
+
+        return size >= iconSize ? size < otherSize : size > otherSize;
+    }
+
+    /**
+     * Write the persistent index of every root that had to be scanned.
+     */
+    private void saveIndex()
+    {
+        for (int root = 0; root < roots.size(); root++)
+        {
+            ThemeRoot themeRoot = roots.get(root);
+
+            if (!themeRoot.indexChanged)
+                continue;
+
+            ArrayList<ThemeDirectory> rootDirectories = new ArrayList<>();
+            ArrayList<DirectoryListing> known = new ArrayList<>();
+
+            for (int i = 0; i < directories.size(); i++)
+            {
+                ThemeDirectory directory = directories.get(i);
+                if (directory.root != root)
+                    continue;
+
+                // Keep what the old index knew about directories we have not needed yet
+                DirectoryListing listing = listings.get(i);
+                if (listing == null && themeRoot.index != null)
+                    listing = themeRoot.index.getStoredListing(directory);
+
+                rootDirectories.add(directory);
+                known.add(listing);
+            }
+
+            ThemeIndexCache.write(themeRoot.path, rootDirectories, known);
+            themeRoot.indexChanged = false;
+        }
+
+        unsavedDirectories = 0;
+    }
+
+    /**
+     * Write the persistent index after lazily loading directories, but only once a batch of them
+     * has been scanned or the theme is completely loaded, not on every lookup that scans one.
+     */
+    private void saveIndexIfDue()
+    {
+        if (unsavedDirectories >= INDEX_SAVE_BATCH || (unsavedDirectories > 0 && unscannedDirectories == 0))
+            saveIndex();
+    }
+
+    private void loadFromListing(int directoryIndex, DirectoryListing listing, IconTable table)
+    {
+        String context = directories.get(directoryIndex).context;
+        ConcurrentHashMap<String, ThemeIcon> contextIcons = null;
+
+        if (context != null)
+        {
+            context = context.toLowerCase();
+            contextIcons = table.contexts.get(context);
+
+            // Only one thread writes to the table at a time
+            if (contextIcons == null)
+            {
+                contextIcons = new ConcurrentHashMap<>();
+                table.contexts.put(context, contextIcons);
+            }
+        }
+
+        for (int i = 0; i < listing.size(); i++)
+            loadIcon(table, contextIcons, listing.getIconName(i), directoryIndex, listing.getImageSize(i));
+    }
+
+    /**
+     * Read the size of a PNG image from its IHDR chunk, which must be the first chunk of the file.
+     *
+     * @param imageFile PNG file
+     * @return the bigger of the image's width and height, or 0 if the file is not a PNG image
+     */
+    private static int readImageSize(Path imageFile)
+    {
+        ByteBuffer header = ByteBuffer.allocate(PNG_HEADER_SIZE);
+
+        try (SeekableByteChannel channel = Files.newByteChannel(imageFile))
+        {
+            while (header.hasRemaining() && channel.read(header) != -1)
+                ;
+        }
+        catch (IOException e)
+        {
+            log.debug("Could not read image '{}': {}", imageFile.toString(), e.getMessage());
+            return 0;
+        }
+
+        if (header.hasRemaining() || header.getLong(0) != PNG_SIGNATURE || header.getInt(12) != PNG_IHDR)
+        {
+            log.warn("Icon file '{}' is not a PNG image.", imageFile.toString());
+            return 0;
+        }
+
+        return Math.max(header.getInt(16), header.getInt(20));
+    }
+
+    /**
+     * Add a source to an icon, in the index of the whole theme and in the partition of the
+     * directory's context. Precedence between the directories is decided when the icon is
+     * loaded. New icons get their first source before lookups can find them.
+     *
+     * @param contextIcons partition of the directory's context, null if it has no context
+     */
+    private void loadIcon(IconTable table, ConcurrentHashMap<String, ThemeIcon> contextIcons, String iconName,
+                          int directoryIndex, int imageSize)
+    {
+        ThemeIcon icon = table.icons.get(iconName);
+
+        if (icon == null)
+        {
+            icon = new ThemeIcon(iconName);
+            icon.add(directoryIndex, imageSize);
+
+            // Shared until the icon is found outside the context
+            if (contextIcons != null)
+                contextIcons.put(iconName, icon);
+            table.icons.put(iconName, icon);
+        }
+        else
+        {
+            ThemeIcon contextIcon = contextIcons == null ? null : contextIcons.get(iconName);
+
+            if (contextIcon == icon)
+            {
+                icon.add(directoryIndex, imageSize);
+            }
+            else
+            {
+                // The shared icon must not gain a source outside its context, the whole theme gets its own copy
+                if (isSharedIcon(table, icon))
+                {
+                    ThemeIcon copy = new ThemeIcon(icon);
+                    copy.add(directoryIndex, imageSize);
+                    table.icons.put(iconName, copy);
+                    icon.successor = copy;
+                }
+                else
+                {
+                    icon.add(directoryIndex, imageSize);
+                }
+
+                if (contextIcon != null)
+                {
+                    contextIcon.add(directoryIndex, imageSize);
+                }
+                else if (contextIcons != null)
+                {
+                    contextIcon = new ThemeIcon(iconName);
+                    contextIcon.add(directoryIndex, imageSize);
+                    contextIcons.put(iconName, contextIcon);
+                }
+            }
+        }
+
+        log.debug("Icon {} from directory {} was added to an IconList", iconName, directoryIndex);
+    }
+
+    /**
+     * Tell whether an icon of the whole theme is shared with a context partition. A shared icon
+     * only has sources of one context, so it can only be shared with the context of its first source.
+     */
+    private boolean isSharedIcon(IconTable table, ThemeIcon icon)
+    {
+        String context = directories.get(icon.directories[0]).context;
+        if (context == null)
+            return false;
+
+        ConcurrentHashMap<String, ThemeIcon> contextIcons = table.contexts.get(context.toLowerCase());
+
+        return contextIcons != null && contextIcons.get(icon.name) == icon;
+    }
+
+    /**
+     * @param icon an icon found in the index
+     * @param context lower case context the icon was found in, null for the whole theme
+     * @return the icon as currently indexed, following its successors for the whole theme
+     */
+    private static ThemeIcon getThemeIcon(ThemeIcon icon, String context)
+    {
+        if (context == null)
+        {
+            ThemeIcon successor;
+            while ((successor = icon.successor) != null)
+                icon = successor;
+        }
+
+        return icon;
+    }
+
+    private Path getIconFile(ThemeIcon icon, int directoryIndex)
+    {
+        return directories.get(directoryIndex).path.resolve(icon.name + DirectoryListing.PNG_EXTENSION);
+    }
+
+    /**
+     * Look up an icon from this theme only, scanning directories first if the icon
+     * might be in one that has not been scanned yet.
+     *
+     * @param context lower case context to look in, null for the whole theme
+     */
+    private ThemeIcon findLocalIcon(String iconName, int iconSize, String context)
+    {
+        if (getUnscannedDirectories(context) > 0)
+        {
+            ThemeIcon tIcon = getIndexedIcon(iconName, context);
+
+            if (tIcon == null || !hasMatch(tIcon, iconSize))
+                loadDirectoriesFor(iconName, iconSize, context);
+        }
+
+        return getIndexedIcon(iconName, context);
+    }
+
+    private ImageIcon getLocalIcon(ThemeIcon indexedIcon, String context, final String iconName, final int iconSize)
+    {
+        // Other sizes may still be unscanned, a matching source is better than resizing.
+        // Loading may replace the icon in the index of the whole theme.
+        if (getUnscannedDirectories(context) > 0 && !hasMatch(indexedIcon, iconSize))
+        {
+            loadDirectoriesFor(iconName, iconSize, context);
+            indexedIcon = getThemeIcon(indexedIcon, context);
+        }
+
+        final ThemeIcon tIcon = indexedIcon;
+
+        // See if the icon has been loaded before, or is being loaded right now
+        Future<ImageIcon> loading = tIcon.getCachedIcon(iconSize);
+
+        if (loading == null)
+        {
+            FutureTask<ImageIcon> task = new FutureTask<>(new Callable<ImageIcon>()
+            {
+                @Override
+                public ImageIcon call()
+                {
+                    return readIcon(tIcon, iconName, iconSize);
+                }
+            });
 
-            if (fallback.name != HICOLOR_ICON_THEME_NAME)
-                icon = fallback.getIcon(iconName, iconSize, false);
-            else if (fallback.name == HICOLOR_ICON_THEME_NAME && queryHicolor == true)
-                icon = fallback.getIcon(iconName, iconSize, false);
+            loading = tIcon.putCachedIcon(iconSize, task);
+
+            // We were first, decode the icon in this thread
+            if (loading == null)
+            {
+                task.run();
+                loading = task;
+            }
+            else if (!loading.isDone())
+            {
+                savedDecodes.incrementAndGet();
+            }
+        }
+        else if (loading.isDone())
+        {
+            // Checked first, the arguments would be boxed on every cache hit
+            if (log.isDebugEnabled())
+                log.debug("Loading cached icon '{}' of size {} from theme '{}'.", iconName, iconSize, name);
+        }
+        else
+        {
+            savedDecodes.incrementAndGet();
+        }
+
+        ImageIcon icon = null;
+
+        try
+        {
+            icon = loading.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            log.error("Could not load icon '{}' of size {}: {}", iconName, iconSize, e.getCause().toString());
         }
 
+        // Don't remember failures, the next lookup tries again
+        if (icon == null)
+            tIcon.removeCachedIcon(iconSize, loading);
+
         return icon;
     }
 
+    /**
+     * Describe the source readIcon would use, from the index alone.
+     */
+    private IconSource getLocalSource(ThemeIcon tIcon, String context, String iconName, int iconSize)
+    {
+        if (getUnscannedDirectories(context) > 0 && !hasMatch(tIcon, iconSize))
+        {
+            loadDirectoriesFor(iconName, iconSize, context);
+            tIcon = getThemeIcon(tIcon, context);
+        }
+
+        int source = chooseSource(tIcon, iconSize);
+        int directoryIndex = tIcon.directories[source];
+        ThemeDirectory directory = directories.get(directoryIndex);
+
+        // Without probing the image is expected to be of its directory's size
+        int imageSize = tIcon.getImageSize(source);
+        if (imageSize == 0)
+            imageSize = directory.size * directory.scale;
+
+        // Like readIcon, anything but the exact size is resized
+        return new IconSource(getIconFile(tIcon, directoryIndex), name, directory.size, directory.scale,
+                              imageSize != iconSize);
+    }
+
+    /**
+     * Read an icon from disk, from the source best suited for the requested size,
+     * and resize it if the image is not of the requested size.
+     *
+     * @return the icon or null if it cannot be read
+     */
+    private ImageIcon readIcon(ThemeIcon tIcon, String iconName, int iconSize)
+    {
+        Path iconFile = getIconFile(tIcon, tIcon.directories[chooseSource(tIcon, iconSize)]);
+
+        try (InputStream in = Files.newInputStream(iconFile, StandardOpenOption.READ))
+        {
+            BufferedImage iconImg = ImageIO.read(in);
+
+            if (iconImg == null)
+            {
+                log.error("Icon file '{}' is not a supported image.", iconFile.toString());
+                return null;
+            }
+
+            // Directories may lie about their sizes, decide by the image itself
+            int imageSize = Math.max(iconImg.getWidth(), iconImg.getHeight());
+
+            if (imageSize != iconSize)
+            {
+                log.info("Theme '{}' does not have icon '{}' in size {}, resizing from {}",
+                         name, iconName, iconSize, imageSize);
+                return new ImageIcon(Scalr.resize(iconImg, iconSize));
+            }
+            else  // TODO Implement SVG-rasterization
+            {
+                log.info("Loading requested icon '{}' of size {} from theme '{}'.",
+                         iconName, iconSize, name);
+                return new ImageIcon(iconImg);
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Could not load icon from file '{}'.", iconFile.toString());
+            return null;
+        }
+    }
+
+    private ImageIcon getIcon(String iconName, int iconSize, boolean queryHicolor)
+    {
+        Resolution resolution = resolve(iconName, iconSize, null, queryHicolor, null);
+
+        if (resolution == null)
+            return null;
+
+        return resolution.getIcon(iconName, iconSize);
+    }
+
+    /**
+     * Remember that an inherited theme is being searched, so that themes inheriting each other
+     * are not searched forever. The set is only made once a search falls through to an inherited
+     * theme, lookups answered by the theme itself allocate nothing.
+     *
+     * @param visited themes searched so far, null if only this theme has been
+     * @param theme inherited theme about to be searched
+     * @return themes searched so far, or null if the theme has already been searched
+     */
+    private Set<Theme> visit(Set<Theme> visited, Theme theme)
+    {
+        if (visited == null)
+        {
+            visited = new HashSet<>();
+            visited.add(this);
+        }
+
+        return visited.add(theme) ? visited : null;
+    }
+
+    private boolean reloadChangedDirectories(Set<Theme> visited)
+    {
+        boolean changed = reloadChangedLocalDirectories();
+
+        for (InheritedTheme inheritedTheme : inheritedThemes)
+        {
+            Theme theme = inheritedTheme.getIfLoaded();
+            if (theme == null)
+                continue;
+
+            Set<Theme> chain = visit(visited, theme);
+            if (chain == null)
+                continue;
+
+            visited = chain;
+            if (theme.reloadChangedDirectories(visited))
+                changed = true;
+        }
+
+        return changed;
+    }
+
+    private boolean collectChangedNames(Map<Theme, Integer> seenReloads, Set<String> changedNames,
+                                        Set<Theme> visited)
+    {
+        boolean known = collectLocalChangedNames(seenReloads, changedNames);
+
+        for (int i = 0; i < inheritedThemes.size(); i++)
+        {
+            Theme theme = inheritedThemes.get(i).getIfLoaded();
+            if (theme == null)
+                continue;
+
+            Set<Theme> chain = visit(visited, theme);
+            if (chain == null)
+                continue;
+
+            visited = chain;
+            if (!theme.collectChangedNames(seenReloads, changedNames, visited))
+                known = false;
+        }
+
+        return known;
+    }
+
+    private boolean collectLocalChangedNames(Map<Theme, Integer> seenReloads, Set<String> changedNames)
+    {
+        synchronized (reloadedNames)
+        {
+            // A theme not seen before may have been searched anyway, its every reload counts
+            Integer seen = seenReloads.put(this, reloads);
+            int since = seen == null ? 0 : seen;
+            int forgotten = reloads - reloadedNames.size();
+
+            if (since < forgotten)
+                return false;
+
+            for (int i = since - forgotten; i < reloadedNames.size(); i++)
+                changedNames.addAll(reloadedNames.get(i));
+
+            return true;
+        }
+    }
+
+    private Resolution resolve(String[] iconNames, int iconSize, boolean queryHicolor, Set<Theme> visited)
+    {
+        for (String iconName : iconNames)
+        {
+            ThemeIcon icon = findLocalIcon(iconName, iconSize, null);
+
+            if (icon != null)
+                return new Resolution(this, icon, null);
+        }
+
+        for (InheritedTheme inheritedTheme : inheritedThemes)
+        {
+            // Only the first theme in the chain falls back to hicolor, so that it is queried last
+            if (inheritedTheme.name.equals(HICOLOR_ICON_THEME_NAME) && !queryHicolor)
+                continue;
+
+            Theme fallback = inheritedTheme.get();
+            if (fallback == null)
+                continue;
+
+            Set<Theme> chain = visit(visited, fallback);
+            if (chain == null)
+                continue;
+
+            visited = chain;
+            Resolution resolution = fallback.resolve(iconNames, iconSize, false, visited);
+            if (resolution != null)
+                return resolution;
+        }
+
+        return null;
+    }
+
+    private Resolution resolve(String iconName, int iconSize, String context, boolean queryHicolor,
+                               Set<Theme> visited)
+    {
+        ThemeIcon icon = findLocalIcon(iconName, iconSize, context);
+
+        if (icon != null)
+            return new Resolution(this, icon, context);
+
+        for (InheritedTheme inheritedTheme : inheritedThemes)
+        {
+            // Only the first theme in the chain falls back to hicolor, so that it is queried last
+            if (inheritedTheme.name.equals(HICOLOR_ICON_THEME_NAME) && !queryHicolor)
+                continue;
+
+            Theme fallback = inheritedTheme.get();
+            if (fallback == null)
+                continue;
+
+            Set<Theme> chain = visit(visited, fallback);
+            if (chain == null)
+                continue;
+
+            visited = chain;
+            Resolution resolution = fallback.resolve(iconName, iconSize, context, false, visited);
+            if (resolution != null)
+                return resolution;
+        }
+
+        return null;
+    }
+
+    private void listIcons(String context, Set<String> iconNames, boolean queryHicolor, Set<Theme> visited)
+    {
+        loadDirectoriesOf(context);
+
+        ConcurrentHashMap<String, ThemeIcon> icons = iconTable.getIcons(context);
+        if (icons != null)
+            iconNames.addAll(icons.keySet());
+
+        for (InheritedTheme inheritedTheme : inheritedThemes)
+        {
+            if (inheritedTheme.name.equals(HICOLOR_ICON_THEME_NAME) && !queryHicolor)
+                continue;
+
+            Theme fallback = inheritedTheme.get();
+            if (fallback == null)
+                continue;
+
+            Set<Theme> chain = visit(visited, fallback);
+            if (chain == null)
+                continue;
+
+            visited = chain;
+            fallback.listIcons(context, iconNames, false, visited);
+        }
+    }
+
     /////////////////////////
     //  endregion Private  //
 }
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import java.nio.file.Path;
+
+/**
+ * One of the directories listed in the Directories-key of an index.theme file.
+ */
+class ThemeDirectory
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * @param themeData parsed index.theme file
+     * @param entry index of the directory in the file's directory table
+     * @param path location of the directory
+     * @param root index of the theme root the directory is in
+     */
+    public ThemeDirectory(IndexThemeFile themeData, int entry, Path path, int root)
+    {
+        this.name = themeData.directoryNames[entry];
+        this.path = path;
+        this.root = root;
+
+        size = themeData.sizes[entry];
+        type = themeData.types[entry];
+        minSize = themeData.minSizes[entry];
+        maxSize = themeData.maxSizes[entry];
+        threshold = themeData.thresholds[entry];
+        scale = themeData.scales[entry];
+        context = themeData.contexts[entry];
+    }
+
+    public final String name;
+    public final Path path;
+    public final int root;
+
+    // Keys of the directory's section in index.theme
+    public final int size;
+    public final int type;
+    public final int minSize;
+    public final int maxSize;
+    public final int threshold;
+    public final int scale;
+    public final String context;
+
+    /**
+     * DirectoryMatchesSize from the icon theme specification, for an unscaled icon.
+     *
+     * @param iconSize requested icon size
+     * @return true if the directory's icons can be used in the given size as they are
+     */
+    public boolean matchesSize(int iconSize)
+    {
+        if (scale != 1)
+            return false;
+
+        switch (type)
+        {
+            case IndexThemeFile.TYPE_FIXED:
+                return size == iconSize;
+            case IndexThemeFile.TYPE_SCALABLE:
+                return minSize <= iconSize && iconSize <= maxSize;
+            default:
+                return size - threshold <= iconSize && iconSize <= size + threshold;
+        }
+    }
+
+    /**
+     * DirectorySizeDistance from the icon theme specification, for an unscaled icon.
+     *
+     * @param iconSize requested icon size
+     * @return how far the directory's icons are from the given size, in pixels
+     */
+    public int getSizeDistance(int iconSize)
+    {
+        switch (type)
+        {
+            case IndexThemeFile.TYPE_FIXED:
+                return Math.abs(size * scale - iconSize);
+            case IndexThemeFile.TYPE_SCALABLE:
+                if (iconSize < minSize * scale)
+                    return minSize * scale - iconSize;
+                if (iconSize > maxSize * scale)
+                    return iconSize - maxSize * scale;
+                return 0;
+            default:
+                // The specification compares threshold directories against MinSize and MaxSize too
+                if (iconSize < (size - threshold) * scale)
+                    return minSize * scale - iconSize;
+                if (iconSize > (size + threshold) * scale)
+                    return iconSize - maxSize * scale;
+                return 0;
+        }
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+}
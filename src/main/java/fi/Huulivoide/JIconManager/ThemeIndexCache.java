@@ -0,0 +1,388 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * JIconManager's own persistent theme index, stored in $XDG_CACHE_HOME/jiconmanager.
+ *
+ * The index remembers the listing of every directory of a theme together with the
+ * directory's modification time, so that later JVM runs only need to stat the
+ * directories instead of listing them. Directories whose modification time has
+ * changed are rescanned and the index is rewritten.
+ *
+ * All integers are big-endian and strings are stored as an u16 byte count followed
+ * by UTF-8 bytes. The layout is:
+ * <pre>
+ * Header:    u32 magic, u32 version, string theme root
+ * Names:     u32 count, string name[count]
+ * Directory: u32 count, { string name, i32 size, i64 mtime, u8 probed, u32 entries,
+ *                         { u32 name id, i32 image size or 0 }[entries] }[count]
+ * </pre>
+ */
+class ThemeIndexCache
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * Open the persistent index of the theme rooted at the given path.
+     *
+     * @param themeRoot root directory of the theme
+     * @return opened index or null if there is no usable index for the theme
+     */
+    public static ThemeIndexCache open(Path themeRoot)
+    {
+        Path indexFile = getIndexFile(themeRoot);
+
+        if (indexFile == null || !Files.isRegularFile(indexFile))
+            return null;
+
+        try
+        {
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ))
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                !readString(buffer).equals(themeRoot.toAbsolutePath().toString()))
+            {
+                log.info("Ignoring incompatible theme index '{}'.", indexFile.toString());
+                return null;
+            }
+
+            String[] names = new String[readCount(buffer, NAME_MIN_BYTES)];
+            for (int i = 0; i < names.length; i++)
+                names[i] = readString(buffer);
+
+            ThemeIndexCache index = new ThemeIndexCache();
+
+            int directoryCount = readCount(buffer, DIRECTORY_MIN_BYTES);
+            for (int i = 0; i < directoryCount; i++)
+            {
+                String directoryName = readString(buffer);
+                int size = buffer.getInt();
+                long modified = buffer.getLong();
+                DirectoryListing listing = new DirectoryListing(modified, buffer.get() != 0);
+
+                int entryCount = readCount(buffer, ENTRY_BYTES);
+                for (int j = 0; j < entryCount; j++)
+                {
+                    String iconName = names[buffer.getInt()];
+                    int imageSize = buffer.getInt();
+
+                    listing.add(iconName, imageSize);
+                }
+
+                index.sizes.put(directoryName, size);
+                index.listings.put(directoryName, listing);
+            }
+
+            return index;
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            log.warn("Could not open theme index '{}': {}", indexFile.toString(), e.toString());
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e)
+        {
+            log.warn("Theme index '{}' is corrupted: {}", indexFile.toString(), e.toString());
+        }
+
+        return null;
+    }
+
+    /**
+     * Write the persistent index of a theme, replacing any older one.
+     *
+     * @param themeRoot root directory of the theme
+     * @param directories directories listed in the theme's index.theme
+     * @param listings listing of each directory, in the same order, null for unknown directories
+     */
+    public static void write(Path themeRoot, List<ThemeDirectory> directories, List<DirectoryListing> listings)
+    {
+        Path indexFile = getIndexFile(themeRoot);
+
+        if (indexFile == null)
+            return;
+
+        // Collect every icon name only once, the same icons are found in most directories
+        HashMap<String, Integer> nameIds = new HashMap<>();
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+
+        try
+        {
+            DataOutputStream nameData = new DataOutputStream(nameBytes);
+            DataOutputStream directoryData = new DataOutputStream(directoryBytes);
+
+            int directoryCount = 0;
+            for (DirectoryListing listing : listings)
+            {
+                if (listing != null)
+                    directoryCount++;
+            }
+
+            directoryData.writeInt(directoryCount);
+            for (int i = 0; i < directories.size(); i++)
+            {
+                ThemeDirectory directory = directories.get(i);
+                DirectoryListing listing = listings.get(i);
+
+                if (listing == null)
+                    continue;
+
+                writeString(directoryData, directory.name);
+                directoryData.writeInt(directory.size);
+                directoryData.writeLong(listing.modified);
+                directoryData.writeByte(listing.probed ? 1 : 0);
+                directoryData.writeInt(listing.size());
+
+                for (int j = 0; j < listing.size(); j++)
+                {
+                    directoryData.writeInt(getNameId(listing.getIconName(j), nameIds, nameData));
+                    directoryData.writeInt(listing.getImageSize(j));
+                }
+            }
+
+            Files.createDirectories(indexFile.getParent());
+
+            // Write to a temporary file first, so that no one ever sees a half written index
+            Path temporaryFile = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporaryFile)))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, themeRoot.toAbsolutePath().toString());
+                out.writeInt(nameIds.size());
+                nameBytes.writeTo(out);
+                directoryBytes.writeTo(out);
+            }
+
+            Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Wrote theme index '{}'.", indexFile.toString());
+        }
+        catch (IOException e)
+        {
+            log.warn("Could not write theme index '{}': {}", indexFile.toString(), e.toString());
+        }
+    }
+
+    /**
+     * Get the listing of a directory if it is still up to date.
+     *
+     * @param directory theme directory
+     * @return listing or null if the directory is not indexed or has been modified since
+     */
+    public DirectoryListing getListing(ThemeDirectory directory)
+    {
+        DirectoryListing listing = getStoredListing(directory);
+
+        if (listing == null)
+            return null;
+
+        if (listing.modified != lastModified(directory.path))
+        {
+            log.debug("Directory '{}' has been modified since it was indexed.", directory.path.toString());
+            return null;
+        }
+
+        return listing;
+    }
+
+    /**
+     * Get the stored listing of a directory without checking whether it is up to date.
+     *
+     * @param directory theme directory
+     * @return listing or null if the directory is not indexed
+     */
+    public DirectoryListing getStoredListing(ThemeDirectory directory)
+    {
+        Integer size = sizes.get(directory.name);
+
+        if (size == null || size != directory.size)
+            return null;
+
+        return listings.get(directory.name);
+    }
+
+    /**
+     * Get the modification time of a directory.
+     *
+     * @param directory path to a directory
+     * @return modification time in milliseconds or 0 if it cannot be determined
+     */
+    public static long lastModified(Path directory)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(directory).toMillis();
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //  region Protected   //
+    /////////////////////////
+
+    /**
+     * Construct the path of the index file of a theme.
+     *
+     * Only themes in the default filesystem are indexed. The file name contains a hash
+     * of the theme's root so that equally named themes in different locations don't collide.
+     *
+     * @param themeRoot root directory of the theme
+     * @return path to the index file or null if the theme should not be indexed
+     */
+    static Path getIndexFile(Path themeRoot)
+    {
+        if (CACHE_DIRECTORY == null || themeRoot.getFileSystem() != FileSystems.getDefault())
+            return null;
+
+        Path absoluteRoot = themeRoot.toAbsolutePath();
+
+        return CACHE_DIRECTORY.resolve(absoluteRoot.getFileName().toString() + "-" +
+                                       Integer.toHexString(absoluteRoot.toString().hashCode()) + ".index");
+    }
+
+    /////////////////////////
+    // endregion Protected //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private static final Logger log = LoggerFactory.getLogger(ThemeIndexCache.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x4A494958; // "JIIX"
+    private static final int VERSION = 4;
+
+    // Smallest possible size of each record, a count of more than fit in the rest of the file is corrupted
+    private static final int NAME_MIN_BYTES = 2;
+    private static final int DIRECTORY_MIN_BYTES = 2 + 4 + 8 + 1 + 4;
+    private static final int ENTRY_BYTES = 4 + 4;
+
+    private static final Path CACHE_DIRECTORY = findCacheDirectory();
+
+    private final HashMap<String, Integer> sizes;
+    private final HashMap<String, DirectoryListing> listings;
+
+    private ThemeIndexCache()
+    {
+        sizes = new HashMap<>();
+        listings = new HashMap<>();
+    }
+
+    /**
+     * Find the directory used for JIconManager's cache files as specified in
+     * Freedesktop's base directory specification.
+     *
+     * @return $XDG_CACHE_HOME/jiconmanager, ~/.cache/jiconmanager or null if neither is known
+     */
+    private static Path findCacheDirectory()
+    {
+        String cacheHome = System.getenv("XDG_CACHE_HOME");
+
+        if (cacheHome != null && cacheHome.length() > 0 && Paths.get(cacheHome).isAbsolute())
+            return Paths.get(cacheHome, "jiconmanager");
+
+        String home = System.getProperty("user.home");
+        if (home != null && home.length() > 0)
+            return Paths.get(home, ".cache", "jiconmanager");
+
+        return null;
+    }
+
+    private static int getNameId(String name, HashMap<String, Integer> nameIds, DataOutputStream nameData)
+            throws IOException
+    {
+        Integer id = nameIds.get(name);
+
+        if (id == null)
+        {
+            id = nameIds.size();
+            nameIds.put(name, id);
+            writeString(nameData, name);
+        }
+
+        return id;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(UTF_8);
+
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Read the number of records that follow, checking that that many records fit in the rest of the index.
+     *
+     * @param buffer the index
+     * @param recordBytes smallest size of one record
+     * @return number of records
+     * @throws IllegalArgumentException if the count is negative or too large for the index
+     */
+    private static int readCount(ByteBuffer buffer, int recordBytes)
+    {
+        int count = buffer.getInt();
+
+        if (count < 0 || count > buffer.remaining() / recordBytes)
+            throw new IllegalArgumentException("Count " + count + " does not fit in the index");
+
+        return count;
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
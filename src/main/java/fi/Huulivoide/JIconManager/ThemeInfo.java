@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Description of an installed icon theme, for listing themes to the user.
+ *
+ * Only the [Icon Theme] section of the theme's index.theme is read and the
+ * theme's directories are never scanned, so creating these is cheap.
+ *
+ * @see ThemeRegistry#getInstalledThemeInfo()
+ */
+public class ThemeInfo
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * @return name of the theme's directory, the name used to load the theme
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return human readable name of the theme, the directory name if the theme does not have one
+     */
+    public String getDisplayName()
+    {
+        return displayName;
+    }
+
+    /**
+     * @return short description of the theme or null if it does not have one
+     */
+    public String getComment()
+    {
+        return comment;
+    }
+
+    /**
+     * @return path to the index.theme file of the theme
+     */
+    public Path getThemeFile()
+    {
+        return themeFile;
+    }
+
+    /**
+     * Get the icon the theme gives as its example.
+     *
+     * @return path to a PNG file of the example icon, or null if the theme
+     *         has no example icon or it is not available as PNG
+     */
+    public Path getExampleIcon()
+    {
+        return exampleIcon;
+    }
+
+    /**
+     * @return true if the theme asks not to be shown in theme choosers
+     */
+    public boolean isHidden()
+    {
+        return hidden;
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //  region Protected   //
+    /////////////////////////
+
+    /**
+     * Read the information of a theme.
+     *
+     * @param name name of the theme
+     * @param themeFile index.theme file of the theme
+     * @param roots every directory of the theme, in order of precedence
+     * @return information about the theme
+     * @throws IOException if index.theme cannot be read
+     * @throws MalformedIconThemeFileException in case index.theme has serious flaws
+     */
+    static ThemeInfo read(String name, Path themeFile, List<Path> roots)
+            throws IOException, MalformedIconThemeFileException
+    {
+        IndexThemeFile themeData = IndexThemeFile.parseInfo(themeFile);
+
+        return new ThemeInfo(name, themeFile, themeData, findIcon(themeData, roots, themeData.example));
+    }
+
+    /////////////////////////
+    // endregion Protected //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private final String name;
+    private final String displayName;
+    private final String comment;
+    private final Path themeFile;
+    private final Path exampleIcon;
+    private final boolean hidden;
+
+    private ThemeInfo(String name, Path themeFile, IndexThemeFile themeData, Path exampleIcon)
+    {
+        this.name = name;
+        this.themeFile = themeFile;
+        this.exampleIcon = exampleIcon;
+
+        displayName = themeData.name != null ? themeData.name : name;
+        comment = themeData.comment;
+        hidden = themeData.hidden;
+    }
+
+    /**
+     * Look for an icon by checking its file directly in every directory of the theme.
+     *
+     * @return the first file found, in order of the directories, or null if there is none
+     */
+    private static Path findIcon(IndexThemeFile themeData, List<Path> roots, String iconName)
+    {
+        if (iconName == null || iconName.length() == 0)
+            return null;
+
+        String fileName = iconName + DirectoryListing.PNG_EXTENSION;
+
+        for (int i = 0; i < themeData.directoryCount; i++)
+        {
+            for (Path root : roots)
+            {
+                Path iconFile = root.resolve(themeData.directoryNames[i]).resolve(fileName);
+
+                if (Files.isRegularFile(iconFile))
+                    return iconFile;
+            }
+        }
+
+        return null;
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.Huulivoide.JIconManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * ThemeRegistry knows which icon themes are installed on the system.
+ *
+ * The icon directories are only searched the first time a theme is looked up,
+ * so applications that only use their bundled theme never pay for it.
+ * The results are cached until {@link #refresh()} is called.
+ *
+ * <br><br>
+ *
+ * Themes are searched from the base directories listed in
+ * <a href="http://standards.freedesktop.org/icon-theme-spec/icon-theme-spec-latest.html">
+ * Freedesktop.org's Icon Theme Specification</a>: $HOME/.icons, $XDG_DATA_HOME/icons,
+ * icons in every entry of $XDG_DATA_DIRS and /usr/share/pixmaps, in that order.
+ * A theme may be installed in several of them, in which case the directories are merged
+ * and the first index.theme found describes the theme.
+ */
+public class ThemeRegistry
+{
+    //    region Public    //
+    /////////////////////////
+
+    /**
+     * Return the path of the index.theme file for the named theme.
+     *
+     * @param themeName name of the theme
+     * @return Path to theme/index.theme or null if the theme is not installed
+     */
+    public static Path getThemeFile(String themeName)
+    {
+        return getThemes().themeFiles.get(themeName);
+    }
+
+    /**
+     * List all themes installed systemwide or to user's home directory.
+     *
+     * @return unmodifiable map from theme names to their index.theme files
+     */
+    public static Map<String, Path> getInstalledThemes()
+    {
+        return getThemes().themeFiles;
+    }
+
+    /**
+     * Describe every installed theme, for example to let the user choose one.
+     *
+     * Only the [Icon Theme] section of each theme is read, the themes are not loaded.
+     * The themes are read in parallel the first time this is called and the result
+     * is cached until {@link #refresh()} is called. Themes that cannot be read are left out.
+     *
+     * @return unmodifiable map from theme names to their descriptions
+     */
+    public static Map<String, ThemeInfo> getInstalledThemeInfo()
+    {
+        InstalledThemes found = getThemes();
+        Map<String, ThemeInfo> themeInfo = found.themeInfo;
+
+        // Racing callers may both read the themes, which is harmless
+        if (themeInfo == null)
+        {
+            themeInfo = readThemeInfo(found);
+            found.themeInfo = themeInfo;
+        }
+
+        return themeInfo;
+    }
+
+    /**
+     * Describe an installed theme.
+     *
+     * @param themeName name of the theme
+     * @return description of the theme or null if the theme is not installed or cannot be read
+     *
+     * @see #getInstalledThemeInfo()
+     */
+    public static ThemeInfo getThemeInfo(String themeName)
+    {
+        return getInstalledThemeInfo().get(themeName);
+    }
+
+    /**
+     * Search the icon directories again, to notice themes that have been installed
+     * or removed since the last search.
+     *
+     * Themes that are already loaded are not affected. The user's default theme
+     * is detected again the next time it is needed.
+     */
+    public static void refresh()
+    {
+        InstalledThemes found = listInstalledThemes();
+        DefaultThemeResolver.reset();
+
+        synchronized (ThemeRegistry.class)
+        {
+            themes = found;
+        }
+    }
+
+    /////////////////////////
+    //  endregion Public   //
+
+
+    //  region Protected   //
+    /////////////////////////
+
+    /**
+     * Check whether the system supports themes i.e is Linux or some BSD system
+     *
+     * @return true if supported, false if not
+     */
+    static boolean systemSupportsThemes()
+    {
+        String osName = System.getProperty("os.name");
+
+        // TODO Check if OpenBSD really is "OpenBSD" or something else
+        return (osName.equals("Linux") || osName.equals("FreeBSD") || osName.equals("OpenBSD"));
+    }
+
+    /**
+     * Return every directory the named theme is installed in.
+     *
+     * @param themeName name of the theme
+     * @return theme directories in order of precedence, empty if the theme is not installed
+     */
+    static List<Path> getThemeRoots(String themeName)
+    {
+        List<Path> roots = getThemes().themeRoots.get(themeName);
+
+        if (roots == null)
+            return Collections.emptyList();
+
+        return roots;
+    }
+
+    /////////////////////////
+    // endregion Protected //
+
+
+    //   region Private    //
+    /////////////////////////
+
+    private static final Logger log = LoggerFactory.getLogger(ThemeRegistry.class);
+
+    private static final String THEME_FILE_NAME = "index.theme";
+
+    private static volatile InstalledThemes themes;
+
+    /**
+     * Result of one search, replaced as a whole on refresh.
+     */
+    private static class InstalledThemes
+    {
+        public InstalledThemes(Map<String, Path> themeFiles, Map<String, List<Path>> themeRoots)
+        {
+            this.themeFiles = Collections.unmodifiableMap(themeFiles);
+            this.themeRoots = themeRoots;
+        }
+
+        public final Map<String, Path> themeFiles;
+        public final Map<String, List<Path>> themeRoots;
+
+        // Read on first request
+        public volatile Map<String, ThemeInfo> themeInfo;
+    }
+
+    private ThemeRegistry()
+    {
+    }
+
+    private static InstalledThemes getThemes()
+    {
+        InstalledThemes found = themes;
+
+        if (found == null)
+        {
+            synchronized (ThemeRegistry.class)
+            {
+                found = themes;
+
+                if (found == null)
+                {
+                    found = listInstalledThemes();
+                    themes = found;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Read the [Icon Theme] section of every installed theme, in parallel.
+     *
+     * @param found installed themes
+     * @return unmodifiable map of the themes that could be read
+     */
+    private static Map<String, ThemeInfo> readThemeInfo(final InstalledThemes found)
+    {
+        ArrayList<Callable<ThemeInfo>> tasks = new ArrayList<>();
+
+        for (final Map.Entry<String, Path> theme : found.themeFiles.entrySet())
+        {
+            tasks.add(new Callable<ThemeInfo>()
+            {
+                @Override
+                public ThemeInfo call()
+                {
+                    try
+                    {
+                        return ThemeInfo.read(theme.getKey(), theme.getValue(), found.themeRoots.get(theme.getKey()));
+                    }
+                    catch (IOException | MalformedIconThemeFileException e)
+                    {
+                        log.warn("Could not read theme '{}': {}", theme.getKey(), e.getMessage());
+                        return null;
+                    }
+                }
+            });
+        }
+
+        HashMap<String, ThemeInfo> themeInfo = new HashMap<>();
+
+        try
+        {
+            for (Future<ThemeInfo> result : ScanPool.POOL.invokeAll(tasks))
+            {
+                ThemeInfo info = result.get();
+
+                if (info != null)
+                    themeInfo.put(info.getName(), info);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            log.error("Reading installed themes failed: {}", e.getCause().toString());
+        }
+
+        return Collections.unmodifiableMap(themeInfo);
+    }
+
+    /**
+     * Read a base directory list from an environment variable.
+     *
+     * @param variable name of the environment variable
+     * @param defaultValue used if the variable is unset or empty
+     * @return absolute directories listed in the variable
+     */
+    private static List<Path> getPathsFromEnvironment(String variable, String defaultValue)
+    {
+        String value = System.getenv(variable);
+        if (value == null || value.length() == 0)
+            value = defaultValue;
+
+        ArrayList<Path> paths = new ArrayList<>();
+        if (value == null)
+            return paths;
+
+        for (String entry : value.split(":"))
+        {
+            // The specification tells to ignore relative paths
+            if (entry.length() > 0 && Paths.get(entry).isAbsolute())
+                paths.add(Paths.get(entry));
+        }
+
+        return paths;
+    }
+
+    /**
+     * List the base directories themes are searched from, in order of precedence.
+     *
+     * @return base directories, some of them may not exist
+     */
+    private static List<Path> getBaseDirectories()
+    {
+        LinkedHashSet<Path> baseDirectories = new LinkedHashSet<>();
+        String home = System.getenv("HOME");
+        String defaultDataHome = null;
+
+        if (home != null && home.length() > 0)
+        {
+            baseDirectories.add(Paths.get(home, ".icons"));
+            defaultDataHome = Paths.get(home, ".local", "share").toString();
+        }
+
+        for (Path dataDirectory : getPathsFromEnvironment("XDG_DATA_HOME", defaultDataHome))
+            baseDirectories.add(dataDirectory.resolve("icons"));
+
+        for (Path dataDirectory : getPathsFromEnvironment("XDG_DATA_DIRS", "/usr/local/share/:/usr/share/"))
+            baseDirectories.add(dataDirectory.resolve("icons"));
+
+        baseDirectories.add(Paths.get("/usr/share/pixmaps"));
+
+        return new ArrayList<>(baseDirectories);
+    }
+
+    /**
+     * Construct a list all themes installed systemwide or to user's home directory.
+     *
+     * @return installed themes
+     */
+    private static InstalledThemes listInstalledThemes()
+    {
+        HashMap<String, Path> themeFiles = new HashMap<>();
+        HashMap<String, List<Path>> themeRoots = new HashMap<>();
+
+        if (systemSupportsThemes())
+        {
+            for (Path baseDirectory : getBaseDirectories())
+            {
+                if (Files.isDirectory(baseDirectory))
+                    findThemesFromDirectory(baseDirectory, themeFiles, themeRoots);
+            }
+
+            // Directories without an index.theme anywhere are not themes
+            themeRoots.keySet().retainAll(themeFiles.keySet());
+        }
+
+        log.debug("Found {} installed icon themes.", themeFiles.size());
+
+        return new InstalledThemes(themeFiles, themeRoots);
+    }
+
+    /**
+     * Scan given directory for icon themes.
+     *
+     * Every direct subdirectory of the given path is recorded as a directory of the theme
+     * of the same name. The first 'index.theme' found for a theme is used for the theme.
+     *
+     * @param iconsDirectoryRoot path to themes-folder root
+     * @param themeFiles index.theme file of each theme found so far
+     * @param themeRoots directories of each theme found so far
+     */
+    private static void findThemesFromDirectory(Path iconsDirectoryRoot, HashMap<String, Path> themeFiles,
+                                                HashMap<String, List<Path>> themeRoots)
+    {
+        try (DirectoryStream<Path> rootStream = Files.newDirectoryStream(iconsDirectoryRoot))
+        {
+            for (Path candidate : rootStream)
+            {
+                // Ignore any files we might find in the root, they are of no interest to us
+                if (!Files.isDirectory(candidate))
+                    continue;
+
+                String themeName = candidate.getFileName().toString();
+
+                List<Path> roots = themeRoots.get(themeName);
+                if (roots == null)
+                {
+                    roots = new ArrayList<>();
+                    themeRoots.put(themeName, roots);
+                }
+
+                roots.add(candidate);
+
+                Path themeFile = candidate.resolve(THEME_FILE_NAME);
+                if (!themeFiles.containsKey(themeName) && Files.isRegularFile(themeFile))
+                    themeFiles.put(themeName, themeFile);
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("An error happened while trying to list themes installed in '{}'. " +
+                     "Error: {}", iconsDirectoryRoot.toString(), e.getMessage());
+        }
+    }
+
+    /////////////////////////
+    //  endregion Private  //
+}
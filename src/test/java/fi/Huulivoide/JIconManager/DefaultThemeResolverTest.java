@@ -0,0 +1,100 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The dconf user databases hold /org/gnome/desktop/interface/icon-theme and gtk-theme,
+ * as GVDB files written in little endian (Papirus) and big endian (Breeze) byte order.
+ */
+public class DefaultThemeResolverTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsLittleEndianDconfDatabase()
+    {
+        assertEquals("Papirus", DefaultThemeResolver.getDconfTheme(ThemeFixtures.getResource("dconf/user-le")));
+    }
+
+    @Test
+    public void readsBigEndianDconfDatabase()
+    {
+        assertEquals("Breeze", DefaultThemeResolver.getDconfTheme(ThemeFixtures.getResource("dconf/user-be")));
+    }
+
+    @Test
+    public void ignoresFilesThatAreNotDconfDatabases() throws Exception
+    {
+        Path notDatabase = folder.newFile("user").toPath();
+        Files.write(notDatabase, "[org/gnome/desktop/interface]".getBytes("UTF-8"));
+
+        assertNull(DefaultThemeResolver.getDconfTheme(notDatabase));
+        assertNull(DefaultThemeResolver.getDconfTheme(folder.getRoot().toPath().resolve("missing")));
+    }
+
+    @Test
+    public void survivesTruncatedDconfDatabase() throws Exception
+    {
+        byte[] bytes = Files.readAllBytes(ThemeFixtures.getResource("dconf/user-le"));
+        Path truncated = folder.newFile("user").toPath();
+        Files.write(truncated, Arrays.copyOf(bytes, 100));
+
+        assertNull(DefaultThemeResolver.getDconfTheme(truncated));
+
+        // The root table ends before its buckets do
+        ByteBuffer inconsistent = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        inconsistent.put("GVariant".getBytes("US-ASCII"));
+        inconsistent.putInt(16, 24).putInt(20, 28);
+        inconsistent.putInt(24, 0).putInt(28, 10);
+
+        Path crafted = folder.newFile("crafted").toPath();
+        Files.write(crafted, inconsistent.array());
+
+        assertNull(DefaultThemeResolver.getDconfTheme(crafted));
+    }
+
+    @Test
+    public void readsQuotedGtkSetting()
+    {
+        assertEquals("Papirus-Dark", DefaultThemeResolver.readIniValue(ThemeFixtures.getResource("config/settings.ini"),
+                                                                        "Settings", "gtk-icon-theme-name"));
+    }
+
+    @Test
+    public void readsKeyFromTheRightSection()
+    {
+        assertEquals("breeze-dark", DefaultThemeResolver.readIniValue(ThemeFixtures.getResource("config/kdeglobals"),
+                                                                       "Icons", "Theme"));
+        assertNull(DefaultThemeResolver.readIniValue(ThemeFixtures.getResource("config/kdeglobals"),
+                                                     "Icons", "Missing"));
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The Cached theme's icon-theme.cache lists, in GTK's format:
+ * <pre>
+ * 16x16/apps:     app-one.png, app-two.png
+ * 32x32/apps:     app-one.png
+ * scalable/apps:  vector.svg
+ * 22x22/unlisted: unlisted-only.png, a directory missing from index.theme
+ * </pre>
+ */
+public class IconThemeCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path themeRoot;
+    private Path cacheFile;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        themeRoot = ThemeFixtures.copyTheme("Cached", folder.getRoot().toPath());
+        cacheFile = themeRoot.resolve(IconThemeCache.CACHE_FILE_NAME);
+
+        ThemeFixtures.writeIcon(themeRoot.resolve("16x16/apps/app-one.png"), 16);
+        ThemeFixtures.writeIcon(themeRoot.resolve("16x16/apps/app-two.png"), 16);
+        ThemeFixtures.writeIcon(themeRoot.resolve("32x32/apps/app-one.png"), 32);
+        Files.createDirectories(themeRoot.resolve("scalable/apps"));
+
+        // On disk but not in the cache, only found by scanning
+        ThemeFixtures.writeIcon(themeRoot.resolve("16x16/apps/not-cached.png"), 16);
+
+        ThemeFixtures.setModified(cacheFile, 60);
+    }
+
+    @Test
+    public void listsPngIconsOfTheThemeDirectories() throws Exception
+    {
+        List<ThemeDirectory> directories = ThemeFixtures.readDirectories(themeRoot);
+        IconThemeCache cache = IconThemeCache.open(themeRoot, directories);
+        assertNotNull(cache);
+
+        List<DirectoryListing> listings = cache.listDirectories(directories);
+        assertEquals(3, listings.size());
+        assertEquals(names("app-one", "app-two"), namesOf(listings.get(0)));
+        assertEquals(names("app-one"), namesOf(listings.get(1)));
+        assertEquals(names(), namesOf(listings.get(2)));
+    }
+
+    @Test
+    public void staleCacheIsNotUsed() throws Exception
+    {
+        ThemeFixtures.setModified(cacheFile, -60);
+
+        assertNull(IconThemeCache.open(themeRoot, ThemeFixtures.readDirectories(themeRoot)));
+    }
+
+    @Test
+    public void cacheOlderThanOneDirectoryIsNotUsed() throws Exception
+    {
+        ThemeFixtures.setModified(themeRoot.resolve("32x32/apps"), 120);
+
+        assertNull(IconThemeCache.open(themeRoot, ThemeFixtures.readDirectories(themeRoot)));
+    }
+
+    @Test
+    public void unsupportedVersionIsNotUsed() throws Exception
+    {
+        byte[] bytes = Files.readAllBytes(cacheFile);
+        ByteBuffer.wrap(bytes).putShort(0, (short) 2);
+        Files.write(cacheFile, bytes);
+        ThemeFixtures.setModified(cacheFile, 60);
+
+        assertNull(IconThemeCache.open(themeRoot, ThemeFixtures.readDirectories(themeRoot)));
+    }
+
+    @Test
+    public void corruptedCacheIsNotListed() throws Exception
+    {
+        byte[] bytes = Files.readAllBytes(cacheFile);
+        Files.write(cacheFile, Arrays.copyOf(bytes, 48));
+        ThemeFixtures.setModified(cacheFile, 60);
+
+        List<ThemeDirectory> directories = ThemeFixtures.readDirectories(themeRoot);
+        IconThemeCache cache = IconThemeCache.open(themeRoot, directories);
+
+        if (cache != null)
+            assertNull(cache.listDirectories(directories));
+    }
+
+    @Test
+    public void loopingIconChainIsCorruption() throws Exception
+    {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(cacheFile));
+        int hashOffset = bytes.getInt(4);
+
+        // Point the first icon of the first used bucket back to itself
+        int iconOffset = -1;
+        for (int bucket = 0; iconOffset == -1; bucket++)
+            iconOffset = bytes.getInt(hashOffset + 4 + 4 * bucket);
+
+        bytes.putInt(iconOffset, iconOffset);
+        Files.write(cacheFile, bytes.array());
+        ThemeFixtures.setModified(cacheFile, 60);
+
+        List<ThemeDirectory> directories = ThemeFixtures.readDirectories(themeRoot);
+        IconThemeCache cache = IconThemeCache.open(themeRoot, directories);
+
+        assertNotNull(cache);
+        assertNull(cache.listDirectories(directories));
+    }
+
+    @Test
+    public void themeIsIndexedFromTheCache() throws Exception
+    {
+        Theme theme = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+
+        assertEquals(32, theme.getIcon("app-one", 32).getIconWidth());
+        assertEquals(16, theme.getIcon("app-two", 16).getIconWidth());
+        assertNull(theme.getIcon("not-cached", 16));
+    }
+
+    @Test
+    public void themeScansItsDirectoriesWhenTheCacheIsStale() throws Exception
+    {
+        ThemeFixtures.setModified(cacheFile, -60);
+
+        Theme theme = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+
+        assertEquals(16, theme.getIcon("not-cached", 16).getIconWidth());
+    }
+
+    @Test
+    public void reloadOnlyRescansDirectoriesChangedAfterTheCache() throws Exception
+    {
+        Theme theme = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+        int generation = Theme.getGeneration();
+
+        assertFalse(theme.reloadChangedDirectories());
+        assertEquals(generation, Theme.getGeneration());
+        assertFalse(Files.exists(ThemeIndexCache.getIndexFile(themeRoot)));
+
+        ThemeFixtures.writeIcon(themeRoot.resolve("32x32/apps/app-three.png"), 32);
+        ThemeFixtures.setModified(themeRoot.resolve("32x32/apps"), 120);
+
+        assertTrue(theme.reloadChangedDirectories());
+        assertEquals(32, theme.getIcon("app-three", 32).getIconWidth());
+        // Directories that did not change keep the icons read from the cache
+        assertNull(theme.getIcon("not-cached", 16));
+    }
+
+    static Set<String> names(String... names)
+    {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    static Set<String> namesOf(DirectoryListing listing)
+    {
+        HashSet<String> names = new HashSet<>();
+        for (int i = 0; i < listing.size(); i++)
+            names.add(listing.getIconName(i));
+
+        return names;
+    }
+}
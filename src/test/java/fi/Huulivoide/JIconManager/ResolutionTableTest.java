@@ -0,0 +1,143 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResolutionTableTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reloadOfAnotherThemeKeepsTheResults() throws Exception
+    {
+        Path ownRoot = writeTheme("Own", "own-icon");
+        Path otherRoot = writeTheme("Other", "other-icon");
+
+        Theme own = new Theme(ownRoot.resolve("index.theme"), false, ScanMode.EAGER);
+        Theme other = new Theme(otherRoot.resolve("index.theme"), false, ScanMode.EAGER);
+        ResolutionTable table = new ResolutionTable(own, null, false);
+
+        Theme.Resolution resolution = table.resolve("own-icon", 16);
+        assertNull(table.resolve("added-icon", 16));
+
+        ThemeFixtures.writeIcon(otherRoot.resolve("16/added-icon.png"), 16);
+        ThemeFixtures.setModified(otherRoot.resolve("16"), 120);
+        assertTrue(other.reloadChangedDirectories());
+
+        assertSame(resolution, table.resolve("own-icon", 16));
+        assertNull(table.resolve("added-icon", 16));
+    }
+
+    @Test
+    public void reloadOfOwnThemeForgetsTheChangedNames() throws Exception
+    {
+        Path ownRoot = writeTheme("Own", "own-icon");
+        ThemeFixtures.writeIcon(ownRoot.resolve("16/removed-icon.png"), 16);
+
+        Theme own = new Theme(ownRoot.resolve("index.theme"), false, ScanMode.EAGER);
+        ResolutionTable table = new ResolutionTable(null, own, true);
+
+        Theme.Resolution resolution = table.resolve("own-icon", 16);
+        assertNotNull(table.resolve("removed-icon", 16));
+        assertNull(table.resolve("added-icon", 16));
+        // Found through the more generic name
+        Theme.Resolution fallback = table.resolve("removed-icon-symbolic", 16);
+        assertNotNull(fallback);
+
+        ThemeFixtures.writeIcon(ownRoot.resolve("16/added-icon.png"), 16);
+        Files.delete(ownRoot.resolve("16/removed-icon.png"));
+        ThemeFixtures.setModified(ownRoot.resolve("16"), 120);
+        assertTrue(own.reloadChangedDirectories());
+
+        // Every name of the directory is looked up again
+        assertNotSame(resolution, table.resolve("own-icon", 16));
+        assertEquals(16, table.getIcon("added-icon", 16).getIconWidth());
+        assertNull(table.resolve("removed-icon", 16));
+        assertNull(table.resolve("removed-icon-symbolic", 16));
+    }
+
+    @Test
+    public void reloadOfOwnThemeKeepsNamesOfOtherDirectories() throws Exception
+    {
+        Path ownRoot = folder.getRoot().toPath().resolve("Kept");
+        ThemeFixtures.writeThemeFile(ownRoot,
+                                     "[Icon Theme]",
+                                     "Name=Kept",
+                                     "Directories=16,32,48",
+                                     "",
+                                     "[16]",
+                                     "Size=16",
+                                     "",
+                                     "[32]",
+                                     "Size=32",
+                                     "",
+                                     "[48]",
+                                     "Size=48");
+
+        ThemeFixtures.writeIcon(ownRoot.resolve("16/kept-icon.png"), 16);
+        ThemeFixtures.writeIcon(ownRoot.resolve("32/kept-icon.png"), 32);
+        ThemeFixtures.writeIcon(ownRoot.resolve("48/other-icon.png"), 48);
+
+        Theme own = new Theme(ownRoot.resolve("index.theme"), false, ScanMode.LAZY);
+        ResolutionTable table = new ResolutionTable(null, own, false);
+
+        // Loads the 16 and 48 directories only
+        Theme.Resolution resolution = table.resolve("kept-icon", 16);
+        assertNotNull(table.resolve("other-icon", 48));
+
+        ThemeFixtures.writeIcon(ownRoot.resolve("48/added-icon.png"), 48);
+        ThemeFixtures.setModified(ownRoot.resolve("48"), 120);
+        assertTrue(own.reloadChangedDirectories());
+
+        assertSame(resolution, table.resolve("kept-icon", 16));
+        assertEquals(48, table.getIcon("added-icon", 48).getIconWidth());
+
+        // The kept result follows the rebuilt index, which gains the directory loaded only now
+        assertEquals(32, table.resolve("kept-icon", 32).getSource("kept-icon", 32).getDirectorySize());
+    }
+
+    private Path writeTheme(String name, String iconName) throws Exception
+    {
+        Path root = folder.getRoot().toPath().resolve(name);
+        ThemeFixtures.writeThemeFile(root,
+                                     "[Icon Theme]",
+                                     "Name=" + name,
+                                     "Directories=16",
+                                     "",
+                                     "[16]",
+                                     "Size=16");
+
+        ThemeFixtures.writeIcon(root.resolve("16/" + iconName + ".png"), 16);
+
+        return root;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThemeDirectoryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ThemeDirectory fixed;
+    private ThemeDirectory threshold;
+    private ThemeDirectory scalable;
+    private ThemeDirectory fixedScaled;
+    private ThemeDirectory scalableScaled;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        List<ThemeDirectory> directories = ThemeFixtures.readDirectories(
+            ThemeFixtures.writeThemeFile(folder.getRoot().toPath(),
+                                         "[Icon Theme]",
+                                         "Name=Sizes",
+                                         "Directories=fixed,threshold,scalable,fixed@2,scalable@2",
+                                         "",
+                                         "[fixed]",
+                                         "Size=16",
+                                         "Type=Fixed",
+                                         "",
+                                         "[threshold]",
+                                         "Size=16",
+                                         "Type=Threshold",
+                                         "Threshold=2",
+                                         "",
+                                         "[scalable]",
+                                         "Size=48",
+                                         "Type=Scalable",
+                                         "MinSize=16",
+                                         "MaxSize=256",
+                                         "",
+                                         "[fixed@2]",
+                                         "Size=16",
+                                         "Scale=2",
+                                         "Type=Fixed",
+                                         "",
+                                         "[scalable@2]",
+                                         "Size=16",
+                                         "Scale=2",
+                                         "Type=Scalable",
+                                         "MinSize=8",
+                                         "MaxSize=32").getParent());
+
+        fixed = directories.get(0);
+        threshold = directories.get(1);
+        scalable = directories.get(2);
+        fixedScaled = directories.get(3);
+        scalableScaled = directories.get(4);
+    }
+
+    @Test
+    public void fixedDirectoryMatchesOnlyItsSize()
+    {
+        assertTrue(fixed.matchesSize(16));
+        assertFalse(fixed.matchesSize(15));
+        assertFalse(fixed.matchesSize(17));
+
+        assertEquals(0, fixed.getSizeDistance(16));
+        assertEquals(6, fixed.getSizeDistance(10));
+        assertEquals(4, fixed.getSizeDistance(20));
+    }
+
+    @Test
+    public void thresholdDirectoryMatchesAroundItsSize()
+    {
+        assertTrue(threshold.matchesSize(14));
+        assertTrue(threshold.matchesSize(18));
+        assertFalse(threshold.matchesSize(13));
+        assertFalse(threshold.matchesSize(19));
+
+        assertEquals(0, threshold.getSizeDistance(18));
+        // As in the specification, the distance outside the threshold is measured from MinSize and MaxSize
+        assertEquals(6, threshold.getSizeDistance(10));
+        assertEquals(4, threshold.getSizeDistance(20));
+    }
+
+    @Test
+    public void scalableDirectoryMatchesItsRange()
+    {
+        assertTrue(scalable.matchesSize(16));
+        assertTrue(scalable.matchesSize(256));
+        assertFalse(scalable.matchesSize(8));
+        assertFalse(scalable.matchesSize(300));
+
+        assertEquals(0, scalable.getSizeDistance(64));
+        assertEquals(8, scalable.getSizeDistance(8));
+        assertEquals(44, scalable.getSizeDistance(300));
+    }
+
+    @Test
+    public void scaledDirectoryNeverMatchesButIsMeasuredInPixels()
+    {
+        assertFalse(fixedScaled.matchesSize(16));
+        assertFalse(fixedScaled.matchesSize(32));
+        assertFalse(scalableScaled.matchesSize(16));
+
+        assertEquals(0, fixedScaled.getSizeDistance(32));
+        assertEquals(16, fixedScaled.getSizeDistance(16));
+
+        assertEquals(0, scalableScaled.getSizeDistance(40));
+        assertEquals(6, scalableScaled.getSizeDistance(10));
+        assertEquals(6, scalableScaled.getSizeDistance(70));
+    }
+}
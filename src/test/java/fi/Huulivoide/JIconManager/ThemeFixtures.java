@@ -0,0 +1,143 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Helpers for building small icon themes on disk for the tests.
+ */
+class ThemeFixtures
+{
+    /**
+     * Copy one of the themes in the test resources to the given directory.
+     *
+     * @param themeName name of the theme's directory in the resources
+     * @param targetDirectory directory the theme is copied into
+     * @return root directory of the copy
+     */
+    static Path copyTheme(String themeName, Path targetDirectory) throws IOException
+    {
+        final Path source = getResource("themes/" + themeName);
+        final Path target = targetDirectory.resolve(themeName);
+
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException
+            {
+                Files.createDirectories(target.resolve(source.relativize(directory).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                Files.copy(file, target.resolve(source.relativize(file).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return target;
+    }
+
+    /**
+     * @param name path of a file in the test resources, relative to this package
+     * @return the file
+     */
+    static Path getResource(String name)
+    {
+        try
+        {
+            return Paths.get(ThemeFixtures.class.getResource(name).toURI());
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a square PNG image, creating its directory if needed.
+     *
+     * @param file the image file
+     * @param size width and height of the image
+     */
+    static void writeIcon(Path file, int size) throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        ImageIO.write(new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB), "png", file.toFile());
+    }
+
+    /**
+     * Write an index.theme file from its lines.
+     *
+     * @param themeRoot root directory of the theme
+     * @param lines lines of the file
+     * @return the index.theme file
+     */
+    static Path writeThemeFile(Path themeRoot, String... lines) throws IOException
+    {
+        Files.createDirectories(themeRoot);
+        return Files.write(themeRoot.resolve("index.theme"), Arrays.asList(lines), UTF_8);
+    }
+
+    /**
+     * Read the directories of a theme that has a single root.
+     *
+     * @param themeRoot root directory of the theme
+     * @return every directory of the theme's index.theme
+     */
+    static List<ThemeDirectory> readDirectories(Path themeRoot) throws Exception
+    {
+        IndexThemeFile themeData = IndexThemeFile.parse(themeRoot.resolve("index.theme"));
+        ArrayList<ThemeDirectory> directories = new ArrayList<>();
+
+        for (int i = 0; i < themeData.directoryCount; i++)
+            directories.add(new ThemeDirectory(themeData, i, themeRoot.resolve(themeData.directoryNames[i]), 0));
+
+        return directories;
+    }
+
+    /**
+     * Move a file's modification time, relative to the current time.
+     *
+     * @param file file or directory
+     * @param seconds seconds from now, negative for the past
+     */
+    static void setModified(Path file, int seconds) throws IOException
+    {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + seconds * 1000L));
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ThemeIndexCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path themeRoot;
+    private List<ThemeDirectory> directories;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        themeRoot = folder.getRoot().toPath().resolve("Indexed");
+        ThemeFixtures.writeThemeFile(themeRoot,
+                                     "[Icon Theme]",
+                                     "Name=Indexed",
+                                     "Directories=16x16/apps,32x32/apps",
+                                     "",
+                                     "[16x16/apps]",
+                                     "Size=16",
+                                     "",
+                                     "[32x32/apps]",
+                                     "Size=32");
+
+        ThemeFixtures.writeIcon(themeRoot.resolve("16x16/apps/app-one.png"), 16);
+        ThemeFixtures.writeIcon(themeRoot.resolve("32x32/apps/app-one.png"), 32);
+
+        directories = ThemeFixtures.readDirectories(themeRoot);
+    }
+
+    @Test
+    public void listingsSurviveARoundTrip() throws Exception
+    {
+        long modified = ThemeIndexCache.lastModified(directories.get(0).path);
+
+        DirectoryListing small = new DirectoryListing(modified, true);
+        small.add("app-one", 16);
+        small.add("app-alias", 16);
+        small.add("app-broken", 0);
+
+        ThemeIndexCache.write(themeRoot, directories, Arrays.asList(small, null));
+
+        ThemeIndexCache index = ThemeIndexCache.open(themeRoot);
+        assertNotNull(index);
+
+        DirectoryListing read = index.getListing(directories.get(0));
+        assertNotNull(read);
+        assertEquals(modified, read.modified);
+        assertTrue(read.probed);
+        assertEquals(3, read.size());
+
+        assertEquals("app-one", read.getIconName(0));
+        assertEquals(16, read.getImageSize(0));
+
+        assertEquals("app-alias", read.getIconName(1));
+        assertEquals(16, read.getImageSize(1));
+
+        assertEquals("app-broken", read.getIconName(2));
+        assertEquals(0, read.getImageSize(2));
+
+        // Directories missing from the written index are unknown, not empty
+        assertNull(index.getStoredListing(directories.get(1)));
+    }
+
+    @Test
+    public void modifiedDirectoryIsNotTrusted() throws Exception
+    {
+        Path directory = directories.get(0).path;
+        DirectoryListing listing = new DirectoryListing(ThemeIndexCache.lastModified(directory));
+        listing.add("app-one");
+
+        ThemeIndexCache.write(themeRoot, directories, Arrays.asList(listing, null));
+        ThemeFixtures.setModified(directory, 60);
+
+        ThemeIndexCache index = ThemeIndexCache.open(themeRoot);
+        assertNull(index.getListing(directories.get(0)));
+        assertNotNull(index.getStoredListing(directories.get(0)));
+    }
+
+    @Test
+    public void directoryOfAnotherSizeIsNotTrusted() throws Exception
+    {
+        DirectoryListing listing = new DirectoryListing(ThemeIndexCache.lastModified(directories.get(0).path));
+        listing.add("app-one");
+
+        ThemeIndexCache.write(themeRoot, directories, Arrays.asList(listing, null));
+
+        // Same directory name, but index.theme now gives it another size
+        ThemeFixtures.writeThemeFile(themeRoot,
+                                     "[Icon Theme]",
+                                     "Directories=16x16/apps",
+                                     "",
+                                     "[16x16/apps]",
+                                     "Size=24");
+
+        ThemeIndexCache index = ThemeIndexCache.open(themeRoot);
+        assertNull(index.getListing(ThemeFixtures.readDirectories(themeRoot).get(0)));
+    }
+
+    @Test
+    public void corruptedIndexIsNotUsed() throws Exception
+    {
+        ThemeIndexCache.write(themeRoot, directories, Arrays.asList(new DirectoryListing(0), null));
+
+        Path indexFile = ThemeIndexCache.getIndexFile(themeRoot);
+        byte[] bytes = Files.readAllBytes(indexFile);
+        Files.write(indexFile, Arrays.copyOf(bytes, bytes.length - 3));
+
+        assertNull(ThemeIndexCache.open(themeRoot));
+
+        // Magic, version and the theme root come before the count of names, which is followed
+        // by the count of directories as the only listing is empty
+        int nameCountOffset = 4 + 4 + 2 + (ByteBuffer.wrap(bytes).getShort(8) & 0xFFFF);
+        int[] countOffsets = { nameCountOffset, nameCountOffset, nameCountOffset + 4 };
+        int[] badCounts = { -1, Integer.MAX_VALUE, Integer.MAX_VALUE };
+
+        for (int i = 0; i < badCounts.length; i++)
+        {
+            byte[] corrupted = bytes.clone();
+            ByteBuffer.wrap(corrupted).putInt(countOffsets[i], badCounts[i]);
+            Files.write(indexFile, corrupted);
+
+            assertNull(ThemeIndexCache.open(themeRoot));
+        }
+    }
+
+    @Test
+    public void lazyLookupsDoNotWriteTheIndexEveryTime() throws Exception
+    {
+        Theme theme = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.LAZY);
+        Path indexFile = ThemeIndexCache.getIndexFile(themeRoot);
+
+        // Scans one directory of the two, too few to be worth writing yet
+        assertNotNull(theme.resolve("app-one", 16));
+        assertFalse(Files.exists(indexFile));
+
+        // The last directory completes the theme, which is written at once
+        assertNotNull(theme.resolve("app-one", 32));
+        assertTrue(Files.exists(indexFile));
+    }
+
+    @Test
+    public void themeIsLoadedFromItsIndexOnTheNextRun() throws Exception
+    {
+        new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+
+        // Sneak in a file without the directory's modification time changing
+        Path directory = themeRoot.resolve("16x16/apps");
+        FileTime modified = Files.getLastModifiedTime(directory);
+        ThemeFixtures.writeIcon(directory.resolve("sneaked-in.png"), 16);
+        Files.setLastModifiedTime(directory, modified);
+
+        Theme indexed = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+        assertNotNull(indexed.getIcon("app-one", 16));
+        assertNull(indexed.getIcon("sneaked-in", 16));
+
+        // Once the directory changes it is scanned again
+        ThemeFixtures.setModified(directory, 60);
+
+        Theme rescanned = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+        assertNotNull(rescanned.getIcon("sneaked-in", 16));
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright 2015 Jesse Jaara <jesse.jaara@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package fi.Huulivoide.JIconManager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.swing.ImageIcon;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ThemeTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path themeRoot;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        themeRoot = folder.getRoot().toPath().resolve("Linked");
+        ThemeFixtures.writeThemeFile(themeRoot,
+                                     "[Icon Theme]",
+                                     "Name=Linked",
+                                     "Directories=8,16,32",
+                                     "",
+                                     "[8]",
+                                     "Size=8",
+                                     "",
+                                     "[16]",
+                                     "Size=16",
+                                     "",
+                                     "[32]",
+                                     "Size=32");
+
+        ThemeFixtures.writeIcon(themeRoot.resolve("8/bar.png"), 8);
+        Files.createDirectories(themeRoot.resolve("16"));
+        Files.createSymbolicLink(themeRoot.resolve("16/foo.png"), Paths.get("../8/bar.png"));
+        ThemeFixtures.writeIcon(themeRoot.resolve("32/foo.png"), 32);
+        Files.createSymbolicLink(themeRoot.resolve("32/broken.png"), Paths.get("missing.png"));
+    }
+
+    @Test
+    public void linkIsAnIconOfItsOwnName() throws Exception
+    {
+        for (ScanMode scanMode : ScanMode.values())
+        {
+            Theme theme = new Theme(themeRoot.resolve("index.theme"), false, scanMode);
+
+            assertEquals(scanMode.name(), themeRoot.resolve("32/foo.png"),
+                         theme.resolve("foo", 32).getSource("foo", 32).getPath());
+            assertEquals(scanMode.name(), 32, theme.getIcon("foo", 32).getIconWidth());
+
+            // The link itself is read from its own directory, through to the target's image
+            IconSource linked = theme.resolve("foo", 16).getSource("foo", 16);
+            assertEquals(scanMode.name(), themeRoot.resolve("16/foo.png"), linked.getPath());
+            assertEquals(scanMode.name(), 16, linked.getDirectorySize());
+            assertEquals(scanMode.name(), 16, theme.getIcon("foo", 16).getIconWidth());
+
+            assertEquals(scanMode.name(), themeRoot.resolve("8/bar.png"),
+                         theme.resolve("bar", 8).getSource("bar", 8).getPath());
+        }
+    }
+
+    @Test
+    public void linksSurviveThePersistentIndex() throws Exception
+    {
+        new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+        Theme theme = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+
+        assertEquals(themeRoot.resolve("32/foo.png"), theme.resolve("foo", 32).getSource("foo", 32).getPath());
+        assertEquals(32, theme.getIcon("foo", 32).getIconWidth());
+    }
+
+    @Test
+    public void iconOfOneContextIsDecodedOnce() throws Exception
+    {
+        Path root = writeContextTheme();
+
+        for (ScanMode scanMode : ScanMode.values())
+        {
+            Theme theme = new Theme(root.resolve("index.theme"), false, scanMode);
+
+            assertSame(scanMode.name(), theme.resolve("app", 16).getIcon("app", 16),
+                       theme.resolve("app", 16, "Applications").getIcon("app", 16));
+        }
+    }
+
+    @Test
+    public void iconOfSeveralContextsKeepsItsSourcesApart() throws Exception
+    {
+        Path root = writeContextTheme();
+
+        for (ScanMode scanMode : ScanMode.values())
+        {
+            Theme theme = new Theme(root.resolve("index.theme"), false, scanMode);
+
+            // Resolved while only the first directory may be loaded, then the icon is found in another context
+            Theme.Resolution whole = theme.resolve("both", 16);
+            assertNull(scanMode.name(), theme.resolve("missing", 48));
+
+            assertEquals(scanMode.name(), root.resolve("mime32/both.png"), whole.getSource("both", 32).getPath());
+            assertEquals(scanMode.name(), root.resolve("mime32/both.png"),
+                         theme.resolve("both", 32).getSource("both", 32).getPath());
+            assertEquals(scanMode.name(), root.resolve("apps16/both.png"),
+                         theme.resolve("both", 32, "Applications").getSource("both", 32).getPath());
+            assertEquals(scanMode.name(), root.resolve("mime32/both.png"),
+                         theme.resolve("both", 16, "MimeTypes").getSource("both", 16).getPath());
+        }
+    }
+
+    @Test
+    public void loadedContextIsReadWithoutLocking() throws Exception
+    {
+        final Theme theme = new Theme(writeContextTheme().resolve("index.theme"), false, ScanMode.LAZY);
+        final Theme.Resolution resolution = theme.resolve("app", 48, "Applications");
+
+        // Loads the whole context, none of its directories has the icon in this size
+        assertEquals(48, resolution.getIcon("app", 48).getIconWidth());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            // The other contexts are still unscanned, yet the lookup must not wait for them
+            synchronized (theme)
+            {
+                Future<ImageIcon> icon = executor.submit(new Callable<ImageIcon>()
+                {
+                    @Override
+                    public ImageIcon call()
+                    {
+                        return resolution.getIcon("app", 48);
+                    }
+                });
+
+                assertEquals(48, icon.get(5, TimeUnit.SECONDS).getIconWidth());
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void brokenLinkIsNotAnIcon() throws Exception
+    {
+        Theme theme = new Theme(themeRoot.resolve("index.theme"), false, ScanMode.EAGER);
+
+        assertNull(theme.resolve("broken", 32));
+    }
+
+    @Test
+    public void themesInheritingEachOtherAreSearchedOnce() throws Exception
+    {
+        Path first = writeLoopTheme("LoopFirst", "LoopSecond", "first");
+        Path second = writeLoopTheme("LoopSecond", "LoopFirst", "second");
+
+        // Both are system themes, each finds the other among the loaded themes
+        new Theme(second.resolve("index.theme"), true, ScanMode.LAZY);
+        Theme theme = new Theme(first.resolve("index.theme"), true, ScanMode.LAZY);
+
+        assertNull(theme.resolve("missing", 16));
+        assertNull(theme.resolve("missing", 16, "Applications"));
+        assertNull(theme.resolve(new String[] { "missing", "absent" }, 16));
+        assertEquals(second.resolve("apps16/second.png"),
+                     theme.resolve("second", 16).getSource("second", 16).getPath());
+
+        assertTrue(theme.listIcons("Applications").containsAll(Arrays.asList("first", "second")));
+        assertFalse(theme.reloadChangedDirectories());
+        HashSet<String> changedNames = new HashSet<>();
+        assertTrue(theme.collectChangedNames(new HashMap<Theme, Integer>(), changedNames));
+        assertTrue(changedNames.isEmpty());
+    }
+
+    @Test
+    public void tieIsBrokenBySmallestSourceAboveTheRequestedSize() throws Exception
+    {
+        Path root = writeSizesTheme("Tie", "16", "Size=16", "24", "Size=24");
+
+        Theme theme = new Theme(root.resolve("index.theme"), false, ScanMode.EAGER);
+
+        // Both are four pixels off, scaling 24 down beats scaling 16 up
+        assertEquals(24, theme.resolve("icon", 20).getSource("icon", 20).getDirectorySize());
+    }
+
+    @Test
+    public void matchingSourceWinsACloserOne() throws Exception
+    {
+        Path root = writeSizesTheme("Matching",
+                                    "24", "Size=24",
+                                    "threshold", "Size=16\nType=Threshold\nThreshold=4",
+                                    "scalable", "Size=64\nType=Scalable\nMinSize=40\nMaxSize=512");
+
+        Theme theme = new Theme(root.resolve("index.theme"), false, ScanMode.EAGER);
+
+        assertEquals(16, theme.resolve("icon", 20).getSource("icon", 20).getDirectorySize());
+        assertEquals(24, theme.resolve("icon", 24).getSource("icon", 24).getDirectorySize());
+        assertEquals(64, theme.resolve("icon", 48).getSource("icon", 48).getDirectorySize());
+    }
+
+    @Test
+    public void amongMatchingSourcesTheCheapestIsChosen() throws Exception
+    {
+        Path above = writeSizesTheme("Above",
+                                     "20", "Size=20\nType=Threshold\nThreshold=4",
+                                     "24", "Size=24\nType=Threshold\nThreshold=4");
+        Path below = writeSizesTheme("Below",
+                                     "16", "Size=16\nType=Threshold\nThreshold=8",
+                                     "18", "Size=18\nType=Threshold\nThreshold=8");
+
+        Theme aboveTheme = new Theme(above.resolve("index.theme"), false, ScanMode.EAGER);
+        Theme belowTheme = new Theme(below.resolve("index.theme"), false, ScanMode.EAGER);
+
+        // The smallest source not below the requested size, else the biggest one
+        assertEquals(24, aboveTheme.resolve("icon", 22).getSource("icon", 22).getDirectorySize());
+        assertEquals(18, belowTheme.resolve("icon", 22).getSource("icon", 22).getDirectorySize());
+    }
+
+    @Test
+    public void scaledSourceIsMeasuredInPixels() throws Exception
+    {
+        Path root = writeSizesTheme("Scaled", "24", "Size=24", "16@2", "Size=16\nScale=2");
+
+        Theme theme = new Theme(root.resolve("index.theme"), false, ScanMode.EAGER);
+        IconSource source = theme.resolve("icon", 32).getSource("icon", 32);
+
+        // Neither matches as scaled directories never do, but 16@2 is 32 pixels
+        assertEquals(16, source.getDirectorySize());
+        assertEquals(2, source.getScale());
+    }
+
+    @Test
+    public void probedSizeOverridesTheNominalOne() throws Exception
+    {
+        Path root = writeSizesTheme("Probed", "32", "Size=32", "64", "Size=64");
+        // Misplaced in the 32 directory, yet exactly the requested size
+        ThemeFixtures.writeIcon(root.resolve("32/icon.png"), 48);
+
+        Theme nominal = new Theme(root.resolve("index.theme"), false, ScanMode.EAGER);
+        Theme probed = new Theme(root.resolve("index.theme"), false, ScanMode.EAGER,
+                                 new ScanProfile().probeImageSizes());
+
+        assertEquals(64, nominal.resolve("icon", 48).getSource("icon", 48).getDirectorySize());
+        assertEquals(32, probed.resolve("icon", 48).getSource("icon", 48).getDirectorySize());
+    }
+
+    /**
+     * Write a theme with an icon in each directory, of the directory's nominal size.
+     *
+     * @param sections name of each directory followed by the keys of its section, separated by newlines
+     */
+    private Path writeSizesTheme(String name, String... sections) throws Exception
+    {
+        Path root = folder.getRoot().toPath().resolve(name);
+        ArrayList<String> lines = new ArrayList<>();
+        StringBuilder directoryNames = new StringBuilder();
+
+        for (int i = 0; i < sections.length; i += 2)
+        {
+            directoryNames.append(i == 0 ? "" : ",").append(sections[i]);
+            lines.add("");
+            lines.add("[" + sections[i] + "]");
+            lines.addAll(Arrays.asList(sections[i + 1].split("\n")));
+        }
+
+        lines.add(0, "[Icon Theme]");
+        lines.add(1, "Name=" + name);
+        lines.add(2, "Directories=" + directoryNames);
+        ThemeFixtures.writeThemeFile(root, lines.toArray(new String[lines.size()]));
+
+        for (ThemeDirectory directory : ThemeFixtures.readDirectories(root))
+            ThemeFixtures.writeIcon(directory.path.resolve("icon.png"), directory.size * directory.scale);
+
+        return root;
+    }
+
+    private Path writeLoopTheme(String name, String inherits, String iconName) throws Exception
+    {
+        Path root = folder.getRoot().toPath().resolve(name);
+        ThemeFixtures.writeThemeFile(root,
+                                     "[Icon Theme]",
+                                     "Name=" + name,
+                                     "Inherits=" + inherits,
+                                     "Directories=apps16",
+                                     "",
+                                     "[apps16]",
+                                     "Size=16",
+                                     "Context=Applications");
+
+        ThemeFixtures.writeIcon(root.resolve("apps16/" + iconName + ".png"), 16);
+
+        return root;
+    }
+
+    private Path writeContextTheme() throws Exception
+    {
+        Path root = folder.getRoot().toPath().resolve("Contexts");
+        ThemeFixtures.writeThemeFile(root,
+                                     "[Icon Theme]",
+                                     "Name=Contexts",
+                                     "Directories=apps16,mime32,plain48",
+                                     "",
+                                     "[apps16]",
+                                     "Size=16",
+                                     "Context=Applications",
+                                     "",
+                                     "[mime32]",
+                                     "Size=32",
+                                     "Context=MimeTypes",
+                                     "",
+                                     "[plain48]",
+                                     "Size=48");
+
+        ThemeFixtures.writeIcon(root.resolve("apps16/app.png"), 16);
+        ThemeFixtures.writeIcon(root.resolve("apps16/both.png"), 16);
+        ThemeFixtures.writeIcon(root.resolve("mime32/both.png"), 32);
+        ThemeFixtures.writeIcon(root.resolve("plain48/other.png"), 48);
+
+        return root;
+    }
+}